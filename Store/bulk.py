@@ -4,18 +4,12 @@ from google.appengine.ext import db
 from google.appengine.api import datastore
 from google.appengine.api import datastore_types
 from google.appengine.api import datastore_errors
-from google.appengine.ext.mapreduce import operation as op
 from google.appengine.ext.mapreduce import context
 
 import logging
 
 import store
 
-def yield_put(entity):
-    f = op.db.Put(entity)
-    f(context.get())
-    #yield f
-
 def touch(key):
     # change entity
     app = key.namespace()
@@ -30,4 +24,6 @@ def touch(key):
         return
 
     metadata_entity = store._GetMetadataEntity(app)    
-    store.update_entity(app, kind, id, {}, metadata_entity, None, put_function=yield_put, rebuild_facets=True)
+    # Written in a transaction rather than through the mutation pool, so that the kind is marked
+    # changed only once the new revision is visible.
+    store.write_entity(app, kind, id, {}, metadata_entity, None, rebuild_facets=True)
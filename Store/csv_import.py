@@ -45,6 +45,7 @@ def CleanUpFormats(row):
 
 def ImportSplitFile(app, body_file):
     rows = 0
+    metadata_entity = store._GetMetadataEntity(app)
 
     segments = body_file.getvalue().split("\n\n")
     for seg in segments:
@@ -58,8 +59,7 @@ def ImportSplitFile(app, body_file):
         for row in reader:
             key = row[reader.fieldnames[0]]
             CleanUpFormats(row)
-            datastore.RunInTransaction(
-                store.update_entity, app, kind, key, row)
+            store.write_entity(app, kind, key, row, metadata_entity, None)
             rows = rows + 1
 
     return rows
@@ -114,8 +114,7 @@ def ImportCSV(app, kind, key_column, body_file, metadata_entity, user):
             row[key_column] = None
 
         CleanUpFormats(row)
-        datastore.RunInTransaction(
-            store.update_entity, app, kind, key, row, metadata_entity, user)
+        store.write_entity(app, kind, key, row, metadata_entity, user)
         rows = rows + 1
 
     return rows
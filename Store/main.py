@@ -11,8 +11,10 @@ import logging
 import re
 import urllib
 import datetime
+import StringIO
 import simplejson as json
 import store
+import smile
 import csv_import
 
 class MainHandler(webapp.RequestHandler):
@@ -34,25 +36,28 @@ class MainHandler(webapp.RequestHandler):
         user = store.GetUser(self.request)
             
         #logging.info("%s, %s, %s" % (app, kind, id))
-        data = self.request.body_file.getvalue()
+        data = store.decode_request_body(self.request)
+        if data is None:
+            self.response.set_status(500)
+            self.response.clear()
+            return
         data_obj = {}
         if (len(data) == 0):
             return
         
         if (app is not None and kind is not None and id is not None):
             try:
-                data_obj = json.loads(data, use_decimal=True)
-            except json.JSONDecodeError:
+                data_obj = store.parse_request_data(self.request, data)
+            except ValueError:
                 self.response.set_status(500)
                 self.response.clear()
                 return
 
-            datastore.RunInTransaction(
-                store.update_entity, app, kind, id, data_obj, metadata_entity, user)
+            store.write_entity(app, kind, id, data_obj, metadata_entity, user)
 
         elif self.request.headers['Content-type'].startswith('text/csv') and id is None:
             key_column = self.request.get('key', None)
-            result = csv_import.ImportCSV(app, kind, key_column, self.request.body_file,
+            result = csv_import.ImportCSV(app, kind, key_column, StringIO.StringIO(data),
                                           metadata_entity, user)
 
             if result == -1:
@@ -65,8 +70,8 @@ class MainHandler(webapp.RequestHandler):
 
         elif (app is not None and kind is not None and id is None):
             try:
-                data_obj = json.loads(data, use_decimal=True)
-            except json.JSONDecodeError:
+                data_obj = store.parse_request_data(self.request, data)
+            except ValueError:
                 self.response.set_status(500)
                 self.response.clear()
                 return
@@ -82,8 +87,7 @@ class MainHandler(webapp.RequestHandler):
 
             count = 0
             for data in data_obj:
-                datastore.RunInTransaction(
-                    store.update_entity, app, kind, data['key'], data, metadata_entity, user)
+                store.write_entity(app, kind, data['key'], data, metadata_entity, user)
                 count += 1
             
             self.response.out.write(count)
@@ -121,18 +125,91 @@ class MainHandler(webapp.RequestHandler):
               self.response.clear()
               return
         elif (app is not None and kind is not None):
-            results = store.get_entities(app, kind, metadata_entity, self.request.params) 
-            self.response.out.write("[\n")
-            first = True
+            # Taken before the query, so that the response holds every entity dated up to it.
+            self.response.headers["X-Watermark"] = str(store.get_watermark())
+            # The first page of a download can be skipped by clients that have seen every change
+            # to the kind, without running the query. Later pages continue a download under way.
+            etag = None
+            if not store.CURSOR_PARAM in self.request.params:
+                marker = store.get_change_marker(app, kind)
+                if marker:
+                    etag = '"%s"' % marker
+                    if etag in self.request.headers.get('If-None-Match', ''):
+                        self.response.set_status(304)
+                        self.response.headers["ETag"] = etag
+                        return
+            next_cursor = None
+            if store.PAGE_SIZE_PARAM in self.request.params:
+                try:
+                    (results, next_cursor) = store.get_entities_page(
+                        app, kind, metadata_entity, self.request.params)
+                except (ValueError, datastore_errors.BadValueError,
+                        datastore_errors.BadRequestError), e:
+                    logging.error('Invalid page request: %s' % e)
+                    self.response.set_status(400)
+                    self.response.clear()
+                    return
+            else:
+                results = store.get_entities(app, kind, metadata_entity, self.request.params) 
+            columns = set()
+            content_type = None
+            # Clients that can read Smile are answered in it, with each column name written once.
+            encoder = None
+            if store.accepts_smile(self.request):
+                encoder = smile.Encoder(default=store.encode_datetime)
+                content_type = smile.CONTENT_TYPE
+            rows = store.accepts_rows(self.request)
+            if rows:
+                # The columns are listed first, then each entity as an array of its values in
+                # their order. Properties an entity does not have are sent as null. Every column
+                # must be known before the first entity, so only this layout holds them all.
+                entities = [store.output_entity(r) for r in results]
+                for obj in entities:
+                    columns.update(obj.keys())
+                ordered = store.order_columns(columns)
+                items = [ordered] + [[obj.get(c) for c in ordered] for obj in entities]
+                content_type = '%s; layout=%s' % (content_type or store.JSON_CONTENT_TYPE,
+                                                  store.ROWS_LAYOUT)
+            else:
+                # Objects are written as they are read.
+                def read_entities():
+                    for r in results:
+                        obj = store.output_entity(r)
+                        columns.update(obj.keys())
+                        yield obj
+                items = read_entities()
+            if content_type:
+                self.response.headers["Content-Type"] = content_type
             count = 0
-            for r in results:
-                if not first:
-                    self.response.out.write(",\n")
-                first = False
-                self.response.out.write(store.output_entity_json(r))
+            if encoder:
+                self.response.out.write(encoder.start_array())
+            else:
+                self.response.out.write("[\n")
+            for item in items:
+                if encoder:
+                    self.response.out.write(encoder.encode(item))
+                else:
+                    if count > 0:
+                        self.response.out.write(",\n")
+                    self.response.out.write(store.output_object_json(item))
                 count += 1
-            self.response.out.write("\n]\n")
+            if encoder:
+                self.response.out.write(encoder.end_array())
+            else:
+                self.response.out.write("\n]\n")
+            if rows:
+                # Not counting the columns.
+                count -= 1
             self.response.headers["X-Num-Results"] = str(count)
+            # The response is buffered, so the full column set can be sent ahead of the entities,
+            # letting clients create their schema before writing the first row.
+            self.response.headers["X-Columns"] = store.output_columns_header(columns)
+            if next_cursor:
+                # Clients request the next page by passing this back as the cursor parameter.
+                self.response.headers["X-Continuation"] = next_cursor
+            if etag:
+                self.response.headers["ETag"] = etag
+            store.compress_response(self.request, self.response)
         else:
             self.response.set_status(404)
             self.response.clear()
@@ -0,0 +1,420 @@
+#!/usr/bin/env python
+
+# Smile, the binary JSON format of the Jackson library used by the sync client. Field names are
+# written once per document and referred back to afterwards, and numbers are written in binary,
+# so entities are both smaller and quicker to parse than in JSON.
+#
+# Only what the sync protocol needs is written: shared names, but no shared string values and
+# no raw binary. Anything a Jackson generator writes can be read.
+
+import struct
+import base64
+import decimal
+
+CONTENT_TYPE = 'application/x-jackson-smile'
+
+HEADER = ':)\n'
+_VERSION_MASK = 0xF0
+_SHARED_NAMES = 0x01
+_SHARED_VALUES = 0x02
+
+# Back-references are cleared once this many names, or values, have been seen.
+_MAX_SHARED = 1024
+_MAX_SHORT_NAME_REF = 64
+_MAX_SHARED_VALUE_BYTES = 64
+
+_START_ARRAY = '\xf8'
+_END_ARRAY = '\xf9'
+_START_OBJECT = '\xfa'
+_END_OBJECT = '\xfb'
+_END_STRING = '\xfc'
+
+_MIN_INT32 = -2 ** 31
+_MAX_INT32 = 2 ** 31 - 1
+_MIN_INT64 = -2 ** 63
+_MAX_INT64 = 2 ** 63 - 1
+
+class DecodeError(ValueError):
+    pass
+
+def loads(data):
+    # Returns the value held by a Smile document, with binary data as base64 strings as JSON
+    # would hold it. Raises DecodeError if data is not valid Smile.
+    return _Decoder(data).decode()
+
+class Encoder(object):
+    # Writes a Smile document piece by piece, so that a long array need not be held at once.
+    # Objects that cannot be written otherwise are passed to default, as by json.dumps.
+
+    def __init__(self, default=None):
+        self._default = default
+        self._names = {}
+        self._started = False
+
+    def start_array(self):
+        return self._header() + _START_ARRAY
+
+    def end_array(self):
+        return _END_ARRAY
+
+    def encode(self, obj):
+        out = [self._header()]
+        self._write(obj, out)
+        return ''.join(out)
+
+    def _header(self):
+        if self._started:
+            return ''
+        self._started = True
+        return HEADER + chr(_SHARED_NAMES)
+
+    def _write(self, obj, out):
+        if obj is None:
+            out.append('\x21')
+        elif obj is True:
+            out.append('\x23')
+        elif obj is False:
+            out.append('\x22')
+        elif isinstance(obj, (int, long)):
+            self._write_int(obj, out)
+        elif isinstance(obj, float):
+            out.append('\x29')
+            out.append(_groups(struct.unpack('>Q', struct.pack('>d', obj))[0], 10))
+        elif isinstance(obj, decimal.Decimal):
+            # Written as JSON would be read: a number without a fraction is an integer.
+            exponent = obj.as_tuple()[2]
+            if isinstance(exponent, (int, long)) and exponent >= 0:
+                self._write_int(long(obj), out)
+            else:
+                self._write(float(obj), out)
+        elif isinstance(obj, basestring):
+            self._write_string(obj, out)
+        elif isinstance(obj, dict):
+            out.append(_START_OBJECT)
+            for (name, value) in obj.iteritems():
+                self._write_name(name, out)
+                self._write(value, out)
+            out.append(_END_OBJECT)
+        elif isinstance(obj, (list, tuple)):
+            out.append(_START_ARRAY)
+            for value in obj:
+                self._write(value, out)
+            out.append(_END_ARRAY)
+        elif self._default is not None:
+            self._write(self._default(obj), out)
+        else:
+            raise TypeError(repr(obj) + " is not Smile serializable")
+
+    def _write_int(self, n, out):
+        if -16 <= n <= 15:
+            out.append(chr(0xC0 + _zigzag(n, 32)))
+        elif _MIN_INT32 <= n <= _MAX_INT32:
+            out.append('\x24')
+            out.append(_vint(_zigzag(n, 32)))
+        elif _MIN_INT64 <= n <= _MAX_INT64:
+            out.append('\x25')
+            out.append(_vint(_zigzag(n, 64)))
+        else:
+            raw = _to_twos_complement(n)
+            out.append('\x26')
+            out.append(_vint(len(raw)))
+            out.append(_encode_seven_bit(raw))
+
+    def _write_string(self, s, out):
+        if not s:
+            out.append('\x20')
+            return
+        if isinstance(s, unicode):
+            encoded = s.encode('utf-8')
+            is_ascii = len(encoded) == len(s)
+        else:
+            # Byte strings are taken to be UTF-8, as by json.dumps.
+            encoded = s
+            is_ascii = len(s.decode('utf-8')) == len(s)
+        length = len(encoded)
+        if is_ascii:
+            if length <= 64:
+                out.append(chr(0x3F + length))
+                out.append(encoded)
+            else:
+                out.append('\xe0')
+                out.append(encoded)
+                out.append(_END_STRING)
+        else:
+            if length <= 65:
+                out.append(chr(0x7E + length))
+                out.append(encoded)
+            else:
+                out.append('\xe4')
+                out.append(encoded)
+                out.append(_END_STRING)
+
+    def _write_name(self, name, out):
+        if not name:
+            out.append('\x20')
+            return
+        if not isinstance(name, unicode):
+            name = unicode(name, 'utf-8')
+        ref = self._names.get(name)
+        if ref is not None:
+            if ref < _MAX_SHORT_NAME_REF:
+                out.append(chr(0x40 + ref))
+            else:
+                out.append(chr(0x30 + (ref >> 8)) + chr(ref & 0xFF))
+            return
+        encoded = name.encode('utf-8')
+        length = len(encoded)
+        if length == len(name) and length <= 64:
+            out.append(chr(0x7F + length))
+            out.append(encoded)
+        elif length != len(name) and length <= 57:
+            out.append(chr(0xBE + length))
+            out.append(encoded)
+        else:
+            out.append('\x34')
+            out.append(encoded)
+            out.append(_END_STRING)
+        # Long names are shared too.
+        if len(self._names) == _MAX_SHARED:
+            self._names.clear()
+        self._names[name] = len(self._names)
+
+class _Decoder(object):
+
+    def __init__(self, data):
+        self._data = data
+        self._pos = 0
+        self._names = None
+        self._values = None
+
+    def decode(self):
+        data = self._data
+        if not data.startswith(HEADER) or len(data) < 4:
+            raise DecodeError('Missing Smile header')
+        flags = ord(data[3])
+        if flags & _VERSION_MASK:
+            raise DecodeError('Unsupported Smile version %d' % (flags >> 4))
+        if flags & _SHARED_NAMES:
+            self._names = []
+        if flags & _SHARED_VALUES:
+            self._values = []
+        self._pos = 4
+        value = self._value(self._next())
+        # Generators may end the document with a marker.
+        if self._pos < len(data) and data[self._pos] == '\xff':
+            self._pos += 1
+        if self._pos != len(data):
+            raise DecodeError('Extra data after Smile document')
+        return value
+
+    def _next(self):
+        if self._pos >= len(self._data):
+            raise DecodeError('Unexpected end of Smile document')
+        b = ord(self._data[self._pos])
+        self._pos += 1
+        return b
+
+    def _read(self, length):
+        end = self._pos + length
+        if end > len(self._data):
+            raise DecodeError('Unexpected end of Smile document')
+        s = self._data[self._pos:end]
+        self._pos = end
+        return s
+
+    def _read_until_end(self):
+        end = self._data.find(_END_STRING, self._pos)
+        if end == -1:
+            raise DecodeError('Unterminated string in Smile document')
+        s = self._data[self._pos:end]
+        self._pos = end + 1
+        return s
+
+    def _vint(self):
+        n = 0
+        while True:
+            b = self._next()
+            if b & 0x80:
+                return (n << 6) | (b & 0x3F)
+            n = (n << 7) | b
+
+    def _groups(self, count):
+        n = 0
+        for i in range(count):
+            n = (n << 7) | (self._next() & 0x7F)
+        return n
+
+    def _seven_bit(self):
+        length = self._vint()
+        full = length // 7
+        rest = length % 7
+        encoded = self._read(full * 8 + (rest and rest + 1))
+        return _decode_seven_bit(encoded, length)
+
+    def _text(self, raw):
+        try:
+            return raw.decode('utf-8')
+        except UnicodeDecodeError, e:
+            raise DecodeError('Invalid UTF-8 in Smile document: %s' % e)
+
+    def _value(self, b):
+        if b < 0x20:
+            if b == 0:
+                raise DecodeError('Invalid Smile token 0x00')
+            return self._shared_value(b - 1)
+        elif b == 0x20:
+            return u''
+        elif b == 0x21:
+            return None
+        elif b == 0x22:
+            return False
+        elif b == 0x23:
+            return True
+        elif b == 0x24 or b == 0x25:
+            return _unzigzag(self._vint())
+        elif b == 0x26:
+            return _from_twos_complement(self._seven_bit())
+        elif b == 0x28:
+            return struct.unpack('>f', struct.pack('>I', self._groups(5)))[0]
+        elif b == 0x29:
+            return struct.unpack('>d', struct.pack('>Q', self._groups(10)))[0]
+        elif b == 0x2A:
+            scale = _unzigzag(self._vint())
+            unscaled = _from_twos_complement(self._seven_bit())
+            return decimal.Decimal('%dE%d' % (unscaled, -scale))
+        elif 0x40 <= b <= 0x7F:
+            return self._add_value(self._text(self._read(b - 0x3F)))
+        elif 0x80 <= b <= 0xBF:
+            return self._add_value(self._text(self._read(b - 0x7E)))
+        elif 0xC0 <= b <= 0xDF:
+            return _unzigzag(b & 0x1F)
+        elif b == 0xE0 or b == 0xE4:
+            return self._text(self._read_until_end())
+        elif b == 0xE8:
+            return base64.b64encode(self._seven_bit())
+        elif 0xEC <= b <= 0xEF:
+            return self._shared_value(((b & 0x03) << 8) | self._next())
+        elif b == 0xF8:
+            array = []
+            b = self._next()
+            while b != 0xF9:
+                array.append(self._value(b))
+                b = self._next()
+            return array
+        elif b == 0xFA:
+            obj = {}
+            b = self._next()
+            while b != 0xFB:
+                name = self._name(b)
+                obj[name] = self._value(self._next())
+                b = self._next()
+            return obj
+        elif b == 0xFD:
+            return base64.b64encode(self._read(self._vint()))
+        raise DecodeError('Invalid Smile token 0x%02x' % b)
+
+    def _name(self, b):
+        if b == 0x20:
+            return u''
+        elif 0x30 <= b <= 0x33:
+            return self._shared_name(((b & 0x03) << 8) | self._next())
+        elif b == 0x34:
+            return self._add_name(self._text(self._read_until_end()))
+        elif 0x40 <= b <= 0x7F:
+            return self._shared_name(b - 0x40)
+        elif 0x80 <= b <= 0xBF:
+            return self._add_name(self._text(self._read(b - 0x7F)))
+        elif 0xC0 <= b <= 0xF7:
+            return self._add_name(self._text(self._read(b - 0xBE)))
+        raise DecodeError('Invalid Smile name token 0x%02x' % b)
+
+    def _add_name(self, name):
+        if self._names is not None:
+            if len(self._names) == _MAX_SHARED:
+                del self._names[:]
+            self._names.append(name)
+        return name
+
+    def _shared_name(self, index):
+        if self._names is None or index >= len(self._names):
+            raise DecodeError('Invalid Smile name reference %d' % index)
+        return self._names[index]
+
+    def _add_value(self, value):
+        if self._values is not None and len(value.encode('utf-8')) <= _MAX_SHARED_VALUE_BYTES:
+            if len(self._values) == _MAX_SHARED:
+                del self._values[:]
+            self._values.append(value)
+        return value
+
+    def _shared_value(self, index):
+        if self._values is None or index >= len(self._values):
+            raise DecodeError('Invalid Smile value reference %d' % index)
+        return self._values[index]
+
+def _zigzag(n, bits):
+    return (n << 1) ^ (n >> (bits - 1))
+
+def _unzigzag(n):
+    return (n >> 1) ^ -(n & 1)
+
+def _vint(n):
+    # The last byte holds 6 bits and has its high bit set; the others hold 7 bits each.
+    out = [chr(0x80 | (n & 0x3F))]
+    n >>= 6
+    while n:
+        out.append(chr(n & 0x7F))
+        n >>= 7
+    out.reverse()
+    return ''.join(out)
+
+def _groups(n, count):
+    # Writes the low bits of n as count bytes of 7 bits each, most significant first.
+    return ''.join([chr((n >> (7 * i)) & 0x7F) for i in range(count - 1, -1, -1)])
+
+def _encode_seven_bit(raw):
+    # Each chunk of up to 7 bytes is written as that many bytes of 7 bits, and a last byte with
+    # the bits left over.
+    out = []
+    for start in range(0, len(raw), 7):
+        chunk = raw[start:start + 7]
+        k = len(chunk)
+        n = 0
+        for c in chunk:
+            n = (n << 8) | ord(c)
+        out.append(_groups(n >> k, k))
+        out.append(chr(n & ((1 << k) - 1)))
+    return ''.join(out)
+
+def _decode_seven_bit(encoded, length):
+    out = []
+    pos = 0
+    while length > 0:
+        k = min(length, 7)
+        n = 0
+        for i in range(k):
+            n = (n << 7) | (ord(encoded[pos + i]) & 0x7F)
+        n = (n << k) | (ord(encoded[pos + k]) & ((1 << k) - 1))
+        out.append(''.join([chr((n >> (8 * i)) & 0xFF) for i in range(k - 1, -1, -1)]))
+        pos += k + 1
+        length -= k
+    return ''.join(out)
+
+def _to_twos_complement(n):
+    # The shortest big-endian two's complement form of n, as by Java's BigInteger.toByteArray.
+    out = []
+    while True:
+        out.append(chr(n & 0xFF))
+        n >>= 8
+        if (n == 0 and not ord(out[-1]) & 0x80) or (n == -1 and ord(out[-1]) & 0x80):
+            break
+    out.reverse()
+    return ''.join(out)
+
+def _from_twos_complement(raw):
+    n = 0
+    for c in raw:
+        n = (n << 8) | ord(c)
+    if raw and ord(raw[0]) & 0x80:
+        n -= 1 << (8 * len(raw))
+    return n
@@ -9,7 +9,12 @@ from google.appengine.api import lib_config
 from google.appengine.api import memcache
 from google.appengine.api import users
 from google.appengine.api import oauth
+from google.appengine.datastore import datastore_query
 import os
+import uuid
+import gzip
+import zlib
+import StringIO
 import simplejson
 import logging
 import re
@@ -17,6 +22,7 @@ import urllib
 import datetime
 import simplejson as json
 import iso8601
+import smile
 
 class _ConfigDefaults(object):
   def auth_token():
@@ -32,6 +38,17 @@ SPECIAL_KINDS = [ APP_METADATA ]
 
 FACET_PREFIX = '_facet_'
 
+GZIP = 'gzip'
+
+# Parameters of a paged list request, which are not property filters.
+PAGE_SIZE_PARAM = 'limit'
+CURSOR_PARAM = 'cursor'
+MAX_PAGE_SIZE = 1000
+
+# Entities are dated when their transaction starts, and may be committed up to a request
+# deadline later. Entities dated before a query started, less this margin, are all visible to it.
+WATERMARK_MARGIN = datetime.timedelta(seconds=60)
+
 _builtin_facets = { 
   'app': ['officerid'],
   'app2': ['officerid'],
@@ -92,6 +109,26 @@ def extract_path(path):
 def memcache_key(app, kind, id):
   return "entity:" + (app or '') + '/' + (kind or '') + '/' + (id or '')
 
+def change_marker_key(app, kind):
+  return "changes:" + (app or '') + '/' + (kind or '')
+
+def get_change_marker(app, kind):
+  # Returns a token that changes whenever entities of kind are written, or None if memcache is
+  # unavailable. A token lost from memcache is replaced by a new one, which only costs clients
+  # an unneeded download. Must be read before querying the entities it stands for.
+  key = change_marker_key(app, kind)
+  marker = memcache.get(key)
+  if marker is None:
+    memcache.add(key, uuid.uuid4().hex)
+    marker = memcache.get(key)
+  return marker
+
+def kind_changed(app, kind):
+  # Must be called once the writes to kind are committed, so that a client seeing the new
+  # marker also sees the writes. Called by write_entity.
+  if not memcache.set(change_marker_key(app, kind), uuid.uuid4().hex):
+    memcache.delete(change_marker_key(app, kind))
+
 READ = "READ"
 WRITE = "WRITE"
 OWNER = "OWNER"
@@ -381,6 +418,13 @@ def update_entity(app, kind, id, data, metadata_entity, user, put_function=None,
       else:
         change.put()
 
+def write_entity(app, kind, id, data, metadata_entity, user, rebuild_facets=False):
+    # Updates an entity in a transaction of its own, then marks its kind changed. Every write
+    # goes through here, so that no client holding the kind's ETag misses a new revision.
+    datastore.RunInTransaction(update_entity, app, kind, id, data, metadata_entity, user,
+                               rebuild_facets=rebuild_facets)
+    kind_changed(app, kind)
+
 def get_entity(app, kind, id, include_revisions=False):
     key = datastore.Key.from_path(kind, id, namespace=app)
     entity = None
@@ -403,13 +447,42 @@ def get_entity(app, kind, id, include_revisions=False):
 
 _UNPARSED_SENTINEL = {}
 
+def get_watermark():
+    # Returns the date up to which every entity is visible to a query run from now on. Clients
+    # pass it back as date_after to download only the entities changed since.
+    return datetime.datetime.now() - WATERMARK_MARGIN
+
 def get_entities(app, kind, metadata_entity, params=None):
-    query = datastore.Query(kind=kind, namespace=app)
+    return _entities_query(app, kind, metadata_entity, params).Run()
+
+def get_entities_page(app, kind, metadata_entity, params):
+    # Returns a list of at most params['limit'] entities, starting at params['cursor'] if given,
+    # and the websafe cursor of the next page, or None if this is the last one. The next page
+    # must be requested with the same filters.
+    limit = min(int(params.getone(PAGE_SIZE_PARAM)), MAX_PAGE_SIZE)
+    if limit <= 0:
+      raise ValueError('Invalid page size: %d' % limit)
+    cursor = None
+    if CURSOR_PARAM in params:
+      cursor = datastore_query.Cursor.from_websafe_string(params.getone(CURSOR_PARAM))
+    query = _entities_query(app, kind, metadata_entity, params, cursor)
+    results = query.Get(limit)
+    next_cursor = None
+    if len(results) == limit:
+      next_cursor = query.GetCursor().to_websafe_string()
+    return (results, next_cursor)
+
+def _entities_query(app, kind, metadata_entity, params, cursor=None):
+    query = datastore.Query(kind=kind, namespace=app, cursor=cursor)
     facets = GetFacetsForApp(app, metadata_entity)
     if params:
       for param in params:
-        if param == 'date_start':
+        if param == PAGE_SIZE_PARAM or param == CURSOR_PARAM:
+          continue
+        elif param == 'date_start':
           query['date >='] = iso8601.parse_date(params.getone('date_start'))
+        elif param == 'date_after':
+          query['date >'] = iso8601.parse_date(params.getone('date_after'))
         elif param == 'date_end':
           query['date <'] = iso8601.parse_date(params.getone('date_end'))
         else:
@@ -426,7 +499,7 @@ def get_entities(app, kind, metadata_entity, params=None):
             # If it could not be parsed, assume an unquoted string
             value_native = value
           query[property_name + ' ='] = value_native
-    return query.Run()
+    return query
 
 def output_entity(entity, revision_list=[]):
     base = {"key": entity.key().id_or_name(),
@@ -445,8 +518,71 @@ def output_entity(entity, revision_list=[]):
 
 def output_entity_json(entity, revision_list=[]):
     obj = output_entity(entity, revision_list)
+    return output_object_json(obj)
+
+def output_object_json(obj):
     return json.dumps(obj, default=encode_datetime, use_decimal=True)
 
+def output_columns_header(columns):
+    # Column names are URL-quoted so that they may contain commas.
+    return ','.join([urllib.quote(unicode(c).encode('utf-8'), '') for c in sorted(columns)])
+
+def decode_request_body(request):
+    # Clients compress large request bodies, which App Engine passes on as they are.
+    # Returns None if the body cannot be decompressed.
+    data = request.body_file.getvalue()
+    if request.headers.get('Content-Encoding', '').lower() == GZIP:
+        try:
+            data = gzip.GzipFile(fileobj=StringIO.StringIO(data)).read()
+        except (IOError, zlib.error), e:
+            logging.error('Could not decompress request body: %s' % e)
+            return None
+    return data
+
+JSON_CONTENT_TYPE = 'application/json'
+
+# Clients ask for the rows layout with this header: the columns are listed once, and each entity
+# is an array of its values in their order.
+LAYOUT_HEADER = 'X-Layout'
+ROWS_LAYOUT = 'rows'
+
+def accepts_rows(request):
+    return request.headers.get(LAYOUT_HEADER, '') == ROWS_LAYOUT
+
+def order_columns(columns):
+    # Key and revision come first, so that clients can skip the entities they have without
+    # reading the rest of their values.
+    first = [c for c in ('key', 'rev') if c in columns]
+    return first + sorted([c for c in columns if c not in first])
+
+def accepts_smile(request):
+    # Clients that can read Smile ask for it ahead of JSON.
+    return smile.CONTENT_TYPE in request.headers.get('Accept', '')
+
+def parse_request_data(request, data):
+    # Parses a request body sent as JSON, or as Smile by clients that have been answered in it.
+    # Raises ValueError if the body is not valid.
+    if request.headers.get('Content-Type', '').startswith(smile.CONTENT_TYPE):
+        return smile.loads(data)
+    return json.loads(data, use_decimal=True)
+
+def compress_response(request, response):
+    # App Engine compresses responses itself for clients that accept gzip, replacing any
+    # Content-Encoding set here. The development server does not, so compress there instead.
+    if not os.environ.get('SERVER_SOFTWARE', '').startswith('Development'):
+        return
+    if GZIP not in request.headers.get('Accept-Encoding', ''):
+        return
+    buf = StringIO.StringIO()
+    f = gzip.GzipFile(fileobj=buf, mode='wb')
+    f.write(response.out.getvalue())
+    f.close()
+    response.out.seek(0)
+    response.out.truncate()
+    response.out.write(buf.getvalue())
+    response.headers['Content-Encoding'] = GZIP
+    response.headers['Vary'] = 'Accept-Encoding'
+
 def encode_datetime(obj):
     if isinstance(obj, datetime.datetime):
         return str(obj)
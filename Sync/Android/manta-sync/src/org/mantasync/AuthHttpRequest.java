@@ -20,16 +20,31 @@
 package org.mantasync;
 
 import java.io.IOException;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
 import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.params.ClientPNames;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
 import org.apache.http.cookie.Cookie;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
 import org.apache.http.params.HttpParams;
 import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
 
 import android.accounts.Account;
 import android.accounts.AccountManager;
@@ -54,7 +69,20 @@ public class AuthHttpRequest {
 	public static final int RESULT_SUCCESS = 1;
 	public static final int RESULT_FAILURE = 2;
 	
-	private DefaultHttpClient mHttpClient = new DefaultHttpClient();
+	// Connections kept open to each server, one for each kind synced at once.
+	private static final int MAX_CONNECTIONS_PER_ROUTE = SyncScheduler.MAX_PARALLELISM;
+	private static final int MAX_CONNECTIONS = 2 * MAX_CONNECTIONS_PER_ROUTE;
+	// Mobile links can take several round trips of a second or more to open a TLS connection.
+	private static final int CONNECT_TIMEOUT_MS = 15 * 1000;
+	// Longest wait for data from an open connection, which covers the server building a page.
+	private static final int SOCKET_TIMEOUT_MS = 60 * 1000;
+	// Longest wait for a connection from the pool.
+	private static final long POOL_TIMEOUT_MS = 30 * 1000;
+	private static final int SOCKET_BUFFER_BYTES = 16 * 1024;
+	// How long an idle connection is kept for reuse, unless the server says otherwise.
+	private static final long KEEP_ALIVE_MS = 30 * 1000;
+	
+	private DefaultHttpClient mHttpClient = createHttpClient();
 	private Context mContext;
 	private Account mAccount;
 	private String mServerUrl;
@@ -88,12 +116,57 @@ public class AuthHttpRequest {
 		{
 		    Log.v(TAG, e.getMessage());
 		}
-		String userAgent = "Android/" + Build.VERSION.RELEASE + " (" + Build.MODEL + ", " + app_name + ", " + app_ver + ")";
+		// App Engine only compresses responses for user agents that mention gzip.
+		String userAgent = "Android/" + Build.VERSION.RELEASE + " (" + Build.MODEL + ", " + app_name + ", " + app_ver 
+				+ ", " + HttpCompression.GZIP + ")";
 		
 		HttpParams params = mHttpClient.getParams();
 		HttpProtocolParams.setUserAgent(params, userAgent);
 	}
 	
+	/**
+	 * Returns a client that may be used by several sync threads at once. Connections are kept
+	 * alive and reused across kinds, so each sync pays for opening a connection only once. 
+	 * Requests should be sent through {@link HttpExchange}, which times them and returns their
+	 * connections to the pool.
+	 */
+	private static DefaultHttpClient createHttpClient() {
+		HttpParams params = new BasicHttpParams();
+		HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+		HttpProtocolParams.setContentCharset(params, HTTP.DEFAULT_CONTENT_CHARSET);
+		HttpProtocolParams.setUseExpectContinue(params, true);
+		HttpConnectionParams.setConnectionTimeout(params, CONNECT_TIMEOUT_MS);
+		HttpConnectionParams.setSoTimeout(params, SOCKET_TIMEOUT_MS);
+		HttpConnectionParams.setTcpNoDelay(params, true);
+		HttpConnectionParams.setSocketBufferSize(params, SOCKET_BUFFER_BYTES);
+		ConnManagerParams.setTimeout(params, POOL_TIMEOUT_MS);
+		ConnManagerParams.setMaxTotalConnections(params, MAX_CONNECTIONS);
+		ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(MAX_CONNECTIONS_PER_ROUTE));
+		SchemeRegistry registry = new SchemeRegistry();
+		registry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+		registry.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+		DefaultHttpClient client = new DefaultHttpClient(new ThreadSafeClientConnManager(params, registry), params);
+		client.setKeepAliveStrategy(new DefaultConnectionKeepAliveStrategy() {
+			@Override
+			public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+				long duration = super.getKeepAliveDuration(response, context);
+				return duration < 0 ? KEEP_ALIVE_MS : Math.min(duration, KEEP_ALIVE_MS);
+			}
+		});
+		client.addRequestInterceptor(HttpExchange.SENT_INTERCEPTOR);
+		client.addResponseInterceptor(HttpExchange.RECEIVED_INTERCEPTOR);
+		return client;
+	}
+	
+	/**
+	 * Closes the pooled connections that have expired or been idle too long to be reused.
+	 */
+	public void closeIdleConnections() {
+		ClientConnectionManager manager = mHttpClient.getConnectionManager();
+		manager.closeExpiredConnections();
+		manager.closeIdleConnections(KEEP_ALIVE_MS, TimeUnit.MILLISECONDS);
+	}
+	
 	class PopulateAuthCallback {
 		public void onPopulateDone(int result) {
 			
@@ -156,14 +229,14 @@ public class AuthHttpRequest {
 		
 		protected Integer doInBackground(String... tokens) {
 			try {
-				// Don't follow redirects
-				mHttpClient.getParams().setBooleanParameter(ClientPNames.HANDLE_REDIRECTS, false);
-				
 				String hostOnly = Uri.parse(mServerUrl).buildUpon().path("/").query("").build().toString();
 				String url = hostOnly + "_ah/login?continue=" + hostOnly + "_ah/unreachable&auth=" + tokens[0];
 				HttpGet http_get = new HttpGet(url);
-				HttpResponse response = mHttpClient.execute(http_get);
-				response.getEntity().getContent().close();
+				// Don't follow redirects. Set on the request, as the client is shared with syncs.
+				http_get.getParams().setBooleanParameter(ClientPNames.HANDLE_REDIRECTS, false);
+				HttpExchange exchange = HttpExchange.execute(mHttpClient, http_get);
+				HttpResponse response = exchange.getResponse();
+				exchange.close();
 				if(response.getStatusLine().getStatusCode() != 302) {
 					// Response should be a redirect
 					Log.e(TAG, "Error fetching auth URL. (Response code " + response.getStatusLine().getStatusCode() + ") " + 
@@ -192,8 +265,6 @@ public class AuthHttpRequest {
 			} catch (IOException e) {
 				// TODO Auto-generated catch block
 				e.printStackTrace();
-			} finally {
-				mHttpClient.getParams().setBooleanParameter(ClientPNames.HANDLE_REDIRECTS, true);
 			}
 			return RESULT_FAILURE;
 		}
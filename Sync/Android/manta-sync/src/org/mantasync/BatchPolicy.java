@@ -0,0 +1,63 @@
+/*******************************************************************************
+ * Copyright 2011 Kevin Gibbs and The Manta Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.mantasync;
+
+/**
+ * Chooses transaction boundaries while writing downloaded entities.
+ *
+ * A transaction is committed once it reaches the current target number of rows, a byte limit, or
+ * the latency ceiling, whichever comes first. The row target doubles after every full batch that
+ * committed well within the ceiling, and is halved when a batch overran it or when someone is
+ * reading from the database, so that readers are never held up for long.
+ */
+class BatchPolicy {
+	static final int MIN_ROWS = 50;
+	static final int MAX_ROWS = 5000;
+	static final long DEFAULT_MAX_BYTES = 1024 * 1024;
+
+	private final long mMaxLatencyMs;
+	private final long mMaxBytes;
+	// Adapted by the writer thread, read by the thread that cuts batches.
+	private volatile int mTargetRows = MIN_ROWS;
+
+	BatchPolicy(long maxLatencyMs, long maxBytes) {
+		mMaxLatencyMs = maxLatencyMs;
+		mMaxBytes = maxBytes;
+	}
+
+	int getTargetRows() {
+		return mTargetRows;
+	}
+
+	/**
+	 * Returns true if the current transaction should be committed now.
+	 */
+	boolean shouldCommit(int rows, long bytes, long elapsedMs, boolean readersActive) {
+		long maxLatencyMs = readersActive ? mMaxLatencyMs / 4 : mMaxLatencyMs;
+		return rows >= mTargetRows || bytes >= mMaxBytes || elapsedMs >= maxLatencyMs;
+	}
+
+	/**
+	 * Records a committed transaction, adapting the target size of the next one.
+	 */
+	void recordCommit(int rows, long bytes, long elapsedMs, boolean readersActive) {
+		if (readersActive || elapsedMs > mMaxLatencyMs) {
+			mTargetRows = Math.max(MIN_ROWS, Math.min(mTargetRows, rows) / 2);
+		} else if (rows >= mTargetRows && elapsedMs < mMaxLatencyMs / 2) {
+			mTargetRows = Math.min(MAX_ROWS, mTargetRows * 2);
+		}
+	}
+}
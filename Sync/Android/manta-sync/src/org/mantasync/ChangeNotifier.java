@@ -0,0 +1,116 @@
+/*******************************************************************************
+ * Copyright 2011 Kevin Gibbs and The Manta Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.mantasync;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+
+/**
+ * Collects the entities changed during a transaction on an app database, and sends change
+ * notifications for them once the transaction commits.
+ *
+ * Notifications are deduplicated, and once a kind has more than {@link #MAX_KEYS} changed keys
+ * only its directory URI is notified, which also reaches observers of every key below it.
+ */
+class ChangeNotifier {
+	static final int MAX_KEYS = 20;
+
+	private final ContentResolver mResolver;
+	private final String mApp;
+	// Changed keys per kind. A null set means the whole kind changed.
+	private final Map<String, Set<String>> mChanges = new HashMap<String, Set<String>>();
+
+	ChangeNotifier(ContentResolver resolver, String app) {
+		mResolver = resolver;
+		mApp = app;
+	}
+
+	void recordChange(String kind, String key) {
+		Set<String> keys = mChanges.get(kind);
+		if (keys == null) {
+			if (mChanges.containsKey(kind)) {
+				// Already collapsed to the whole kind.
+				return;
+			}
+			keys = new LinkedHashSet<String>();
+			mChanges.put(kind, keys);
+		}
+		keys.add(key);
+		if (keys.size() > MAX_KEYS) {
+			recordKindChange(kind);
+		}
+	}
+
+	void recordKindChange(String kind) {
+		mChanges.put(kind, null);
+	}
+
+	boolean isEmpty() {
+		return mChanges.isEmpty();
+	}
+
+	/**
+	 * Sends the collected notifications, after the transaction has committed. Join URIs between
+	 * each changed kind and the other given tables are notified as well, as are the URIs of the
+	 * given joins of more than two kinds that include it.
+	 */
+	void commit(Collection<String> tables, Collection<JoinPlan> joins) {
+		for (Entry<String, Set<String>> change : mChanges.entrySet()) {
+			String kind = change.getKey();
+			Set<String> keys = change.getValue();
+			if (keys == null) {
+				notify(mApp + "/" + kind);
+			} else {
+				for (String key : keys) {
+					notify(mApp + "/" + kind + "/" + key);
+				}
+			}
+
+			// Also notify all join URIs.
+			for (String table : tables) {
+				if (table.equals(kind)) {
+					continue;
+				}
+				notify(mApp + "/" + kind + "." + table);
+				notify(mApp + "/" + table + "." + kind);
+			}
+			for (JoinPlan join : joins) {
+				if (join.getCatalogs().length > 2 && join.includes(kind)) {
+					notify(mApp + "/" + join.getName());
+				}
+			}
+		}
+		mChanges.clear();
+	}
+
+	/**
+	 * Discards the collected notifications, after the transaction has rolled back.
+	 */
+	void rollback() {
+		mChanges.clear();
+	}
+
+	private void notify(String path) {
+		mResolver.notifyChange(Uri.withAppendedPath(Store.Base.CONTENT_URI_BASE, path), null);
+	}
+}
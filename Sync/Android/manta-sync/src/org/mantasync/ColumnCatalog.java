@@ -0,0 +1,145 @@
+/*******************************************************************************
+ * Copyright 2011 Kevin Gibbs and The Manta Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.mantasync;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.mantasync.Store.Base;
+
+/**
+ * The columns of one kind's table, in table order. A catalog never changes: adding columns
+ * creates a new catalog, with a new version, which replaces the old one. Readers can therefore
+ * use a catalog from any thread without locking.
+ *
+ * Versions are unique across all catalogs, so a version identifies the schema of a kind at one
+ * point in time.
+ */
+final class ColumnCatalog {
+	private static final AtomicInteger sNextVersion = new AtomicInteger(1);
+	private static final Set<String> sBuiltIn = new HashSet<String>(Base.BUILT_IN_COLUMNS_LIST);
+
+	private final String mKind;
+	private final int mVersion;
+	private final String[] mColumns;
+	private final boolean[] mBuiltIn;
+	private final Map<String, Integer> mOrdinals;
+	private final List<String> mList;
+
+	private ColumnCatalog(String kind, String[] columns) {
+		mKind = kind;
+		mVersion = sNextVersion.getAndIncrement();
+		mColumns = columns;
+		mBuiltIn = new boolean[columns.length];
+		mOrdinals = new HashMap<String, Integer>(columns.length * 2);
+		for (int i = 0; i < columns.length; ++i) {
+			mBuiltIn[i] = sBuiltIn.contains(columns[i]);
+			mOrdinals.put(columns[i], i);
+		}
+		mList = Collections.unmodifiableList(Arrays.asList(columns));
+	}
+
+	static ColumnCatalog of(String kind, Collection<String> columns) {
+		return new ColumnCatalog(kind, columns.toArray(new String[columns.size()]));
+	}
+
+	/**
+	 * Returns true if name is one of {@link Base#BUILT_IN_COLUMNS}.
+	 */
+	static boolean isBuiltInColumn(String name) {
+		return sBuiltIn.contains(name);
+	}
+
+	/**
+	 * Returns a new catalog with the given columns appended, as ALTER TABLE ADD COLUMN does.
+	 * Columns already present are skipped.
+	 */
+	ColumnCatalog withColumns(Collection<String> added) {
+		String[] columns = new String[mColumns.length + added.size()];
+		System.arraycopy(mColumns, 0, columns, 0, mColumns.length);
+		int size = mColumns.length;
+		Set<String> seen = new HashSet<String>(mOrdinals.keySet());
+		for (String column : added) {
+			if (seen.add(column)) {
+				columns[size++] = column;
+			}
+		}
+		if (size < columns.length) {
+			String[] trimmed = new String[size];
+			System.arraycopy(columns, 0, trimmed, 0, size);
+			columns = trimmed;
+		}
+		return new ColumnCatalog(mKind, columns);
+	}
+
+	String getKind() {
+		return mKind;
+	}
+
+	int getVersion() {
+		return mVersion;
+	}
+
+	int size() {
+		return mColumns.length;
+	}
+
+	String getName(int ordinal) {
+		return mColumns[ordinal];
+	}
+
+	boolean isBuiltIn(int ordinal) {
+		return mBuiltIn[ordinal];
+	}
+
+	/**
+	 * Returns the position of column name in the table, or -1 if there is no such column.
+	 */
+	int getOrdinal(String name) {
+		Integer ordinal = mOrdinals.get(name);
+		return ordinal == null ? -1 : ordinal;
+	}
+
+	boolean contains(String name) {
+		return mOrdinals.containsKey(name);
+	}
+
+	/**
+	 * Returns true if any of catalogs has column name.
+	 */
+	static boolean contains(ColumnCatalog[] catalogs, String name) {
+		for (ColumnCatalog catalog : catalogs) {
+			if (catalog.contains(name)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the column names, in table order, as an unmodifiable list.
+	 */
+	List<String> getColumns() {
+		return mList;
+	}
+}
@@ -0,0 +1,183 @@
+/*******************************************************************************
+ * Copyright 2011 Kevin Gibbs and The Manta Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.mantasync;
+
+/**
+ * Parses and formats the timestamps used by the sync server, of the form
+ * <code>yyyy-MM-dd HH:mm:ss[.ffffff]</code> in UTC, as microseconds since the epoch.
+ *
+ * Unlike {@link java.text.SimpleDateFormat}, this class holds no state, so it may be used from
+ * any thread, and parsing does not allocate. Fractions of up to six digits are read exactly;
+ * further digits are truncated.
+ */
+public final class DateCodec {
+	/**
+	 * Returned by {@link #parseMicros(CharSequence)} when the text is not a timestamp.
+	 */
+	public static final long INVALID = Long.MIN_VALUE;
+
+	public static final long MICROS_PER_SECOND = 1000000L;
+	private static final long SECONDS_PER_DAY = 24 * 60 * 60;
+
+	// This class cannot be instantiated
+	private DateCodec() {}
+
+	/**
+	 * Parses a timestamp in UTC, returning microseconds since the epoch, or {@link #INVALID}.
+	 * A 'T' is also accepted between the date and the time, as is a trailing 'Z'.
+	 */
+	public static long parseMicros(CharSequence text) {
+		int length = text.length();
+		if (length < 19 || text.charAt(4) != '-' || text.charAt(7) != '-'
+				|| (text.charAt(10) != ' ' && text.charAt(10) != 'T')
+				|| text.charAt(13) != ':' || text.charAt(16) != ':') {
+			return INVALID;
+		}
+		int year = digits(text, 0, 4);
+		int month = digits(text, 5, 2);
+		int day = digits(text, 8, 2);
+		int hour = digits(text, 11, 2);
+		int minute = digits(text, 14, 2);
+		int second = digits(text, 17, 2);
+		if (year < 0 || month < 1 || month > 12 || day < 1 || day > daysInMonth(year, month)
+				|| hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 59) {
+			return INVALID;
+		}
+
+		long fraction = 0;
+		int i = 19;
+		if (i < length && text.charAt(i) == '.') {
+			int start = ++i;
+			int scale = 100000;
+			for (; i < length; ++i) {
+				int digit = text.charAt(i) - '0';
+				if (digit < 0 || digit > 9) {
+					break;
+				}
+				fraction += digit * scale;
+				scale /= 10;
+			}
+			if (i == start) {
+				return INVALID;
+			}
+		}
+		if (i < length && text.charAt(i) == 'Z') {
+			++i;
+		}
+		if (i != length) {
+			return INVALID;
+		}
+
+		long seconds = daysFromCivil(year, month, day) * SECONDS_PER_DAY
+				+ hour * 3600 + minute * 60 + second;
+		return seconds * MICROS_PER_SECOND + fraction;
+	}
+
+	/**
+	 * Appends the timestamp for the given microseconds since the epoch to out, in UTC. The
+	 * fraction is written with six digits, and left out when it is zero.
+	 */
+	public static StringBuilder format(long micros, StringBuilder out) {
+		long seconds = toSeconds(micros);
+		int fraction = (int)(micros - seconds * MICROS_PER_SECOND);
+		long days = seconds / SECONDS_PER_DAY;
+		int secondOfDay = (int)(seconds - days * SECONDS_PER_DAY);
+		if (secondOfDay < 0) {
+			secondOfDay += SECONDS_PER_DAY;
+			--days;
+		}
+
+		// Civil date from days since the epoch, in the proleptic Gregorian calendar.
+		long z = days + 719468;
+		long era = (z >= 0 ? z : z - 146096) / 146097;
+		int doe = (int)(z - era * 146097);
+		int yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+		int doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+		int mp = (5 * doy + 2) / 153;
+		int day = doy - (153 * mp + 2) / 5 + 1;
+		int month = mp < 10 ? mp + 3 : mp - 9;
+		long year = yoe + era * 400 + (month <= 2 ? 1 : 0);
+
+		pad(out, year, 4).append('-');
+		pad(out, month, 2).append('-');
+		pad(out, day, 2).append(' ');
+		pad(out, secondOfDay / 3600, 2).append(':');
+		pad(out, secondOfDay / 60 % 60, 2).append(':');
+		pad(out, secondOfDay % 60, 2);
+		if (fraction != 0) {
+			pad(out.append('.'), fraction, 6);
+		}
+		return out;
+	}
+
+	public static String format(long micros) {
+		return format(micros, new StringBuilder(26)).toString();
+	}
+
+	/**
+	 * Converts microseconds to whole seconds since the epoch, rounding down.
+	 */
+	public static long toSeconds(long micros) {
+		long seconds = micros / MICROS_PER_SECOND;
+		return micros % MICROS_PER_SECOND < 0 ? seconds - 1 : seconds;
+	}
+
+	/**
+	 * Converts microseconds to whole milliseconds since the epoch, rounding down.
+	 */
+	public static long toMillis(long micros) {
+		long millis = micros / 1000;
+		return micros % 1000 < 0 ? millis - 1 : millis;
+	}
+
+	private static int digits(CharSequence text, int start, int count) {
+		int value = 0;
+		for (int i = start; i < start + count; ++i) {
+			int digit = text.charAt(i) - '0';
+			if (digit < 0 || digit > 9) {
+				return -1;
+			}
+			value = value * 10 + digit;
+		}
+		return value;
+	}
+
+	private static int daysInMonth(int year, int month) {
+		if (month == 2) {
+			boolean leap = (year % 4 == 0 && year % 100 != 0) || year % 400 == 0;
+			return leap ? 29 : 28;
+		}
+		return (month == 4 || month == 6 || month == 9 || month == 11) ? 30 : 31;
+	}
+
+	private static long daysFromCivil(int year, int month, int day) {
+		int y = month <= 2 ? year - 1 : year;
+		int era = (y >= 0 ? y : y - 399) / 400;
+		int yoe = y - era * 400;
+		int doy = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+		int doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+		return era * 146097L + doe - 719468;
+	}
+
+	private static StringBuilder pad(StringBuilder out, long value, int width) {
+		for (long limit = 10; width > 1; --width, limit *= 10) {
+			if (value < limit) {
+				out.append('0');
+			}
+		}
+		return out.append(value);
+	}
+}
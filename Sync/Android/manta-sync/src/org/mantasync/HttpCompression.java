@@ -0,0 +1,127 @@
+/*******************************************************************************
+ * Copyright 2011 Kevin Gibbs and The Manta Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.mantasync;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpRequest;
+import org.apache.http.entity.ByteArrayEntity;
+
+/**
+ * Gzip compression of sync requests and responses. The JSON exchanged repeats the same column
+ * names in every entity, and typically shrinks to a fifth of its size or less.
+ *
+ * Responses are only compressed when the server chose to, so a server that does not compress is
+ * read as before.
+ */
+final class HttpCompression {
+	static final String GZIP = "gzip";
+
+	// Request bodies smaller than this are sent as they are, as gzip would hardly shrink them.
+	private static final int MIN_COMPRESSED_BYTES = 256;
+
+	private HttpCompression() {}
+
+	/**
+	 * Asks for the response to request to be compressed. App Engine also requires the user agent
+	 * to mention gzip, as {@link AuthHttpRequest}'s does.
+	 */
+	static void acceptCompressed(HttpRequest request) {
+		request.setHeader("Accept-Encoding", GZIP);
+	}
+
+	/**
+	 * Returns content, the body of entity as received, decompressed if the server compressed it.
+	 */
+	static InputStream decode(HttpEntity entity, InputStream content) throws IOException {
+		Header encoding = entity.getContentEncoding();
+		if (encoding != null && encoding.getValue().equalsIgnoreCase(GZIP)) {
+			return new GZIPInputStream(content);
+		}
+		return content;
+	}
+
+	/**
+	 * Returns an entity holding data, compressed unless it is small.
+	 */
+	static ByteArrayEntity encode(byte[] data, String contentType) throws IOException {
+		ByteArrayEntity entity;
+		if (data.length < MIN_COMPRESSED_BYTES) {
+			entity = new ByteArrayEntity(data);
+		} else {
+			ByteArrayOutputStream compressed = new ByteArrayOutputStream(data.length / 4);
+			GZIPOutputStream out = new GZIPOutputStream(compressed);
+			out.write(data);
+			out.close();
+			entity = new ByteArrayEntity(compressed.toByteArray());
+			entity.setContentEncoding(GZIP);
+		}
+		entity.setContentType(contentType);
+		return entity;
+	}
+
+	/**
+	 * Counts the bytes read through it.
+	 */
+	static final class CountingInputStream extends FilterInputStream {
+		private long mCount;
+
+		CountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		long getCount() {
+			return mCount;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b != -1) {
+				++mCount;
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			int read = super.read(buffer, offset, length);
+			if (read > 0) {
+				mCount += read;
+			}
+			return read;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = super.skip(n);
+			mCount += skipped;
+			return skipped;
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+	}
+}
@@ -0,0 +1,139 @@
+/*******************************************************************************
+ * Copyright 2011 Kevin Gibbs and The Manta Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.mantasync;
+
+import java.io.IOException;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+
+import android.util.Log;
+
+/**
+ * One request and its response, timed. The time to connect covers leasing a connection from the
+ * pool, and opening it unless a kept-alive one was reused. The time to first byte runs from
+ * sending the request to receiving the response headers, and the transfer time from then until
+ * the response has been read.
+ *
+ * {@link #close} must be called once the response has been read, even partly, so that its
+ * connection is returned to the pool instead of being held or dropped.
+ */
+final class HttpExchange {
+	private static final String TAG = "Manta.HttpExchange";
+
+	// Context attributes set by the interceptors.
+	private static final String SENT_ATTRIBUTE = "org.mantasync.sent";
+	private static final String RECEIVED_ATTRIBUTE = "org.mantasync.received";
+
+	/**
+	 * Records when a request is sent, once its connection is open.
+	 */
+	static final HttpRequestInterceptor SENT_INTERCEPTOR = new HttpRequestInterceptor() {
+		public void process(HttpRequest request, HttpContext context) throws HttpException, IOException {
+			context.setAttribute(SENT_ATTRIBUTE, System.currentTimeMillis());
+		}
+	};
+
+	/**
+	 * Records when the headers of a response are received.
+	 */
+	static final HttpResponseInterceptor RECEIVED_INTERCEPTOR = new HttpResponseInterceptor() {
+		public void process(HttpResponse response, HttpContext context) throws HttpException, IOException {
+			context.setAttribute(RECEIVED_ATTRIBUTE, System.currentTimeMillis());
+		}
+	};
+
+	private final HttpUriRequest mRequest;
+	private final HttpResponse mResponse;
+	private final long mStart;
+	private final long mSent;
+	private final long mReceived;
+	private long mClosed = -1;
+
+	private HttpExchange(HttpUriRequest request, HttpResponse response, long start, HttpContext context) {
+		mRequest = request;
+		mResponse = response;
+		mStart = start;
+		mReceived = getTime(context, RECEIVED_ATTRIBUTE, System.currentTimeMillis());
+		mSent = getTime(context, SENT_ATTRIBUTE, mReceived);
+	}
+
+	private static long getTime(HttpContext context, String attribute, long defaultTime) {
+		Long time = (Long)context.getAttribute(attribute);
+		return time == null ? defaultTime : time;
+	}
+
+	/**
+	 * Sends request with client, which must have the interceptors of this class, and returns once
+	 * the response headers have been received.
+	 */
+	static HttpExchange execute(HttpClient client, HttpUriRequest request) throws IOException {
+		HttpContext context = new BasicHttpContext();
+		long start = System.currentTimeMillis();
+		HttpResponse response = client.execute(request, context);
+		return new HttpExchange(request, response, start, context);
+	}
+
+	HttpResponse getResponse() {
+		return mResponse;
+	}
+
+	long getConnectMillis() {
+		return mSent - mStart;
+	}
+
+	long getFirstByteMillis() {
+		return mReceived - mSent;
+	}
+
+	/**
+	 * Returns the time taken to read the response, once closed, or -1.
+	 */
+	long getTransferMillis() {
+		return mClosed == -1 ? -1 : mClosed - mReceived;
+	}
+
+	/**
+	 * Reads whatever is left of the response, releasing its connection to the pool, and logs the
+	 * timings of the exchange. Safe to call more than once.
+	 */
+	void close() {
+		if (mClosed != -1) {
+			return;
+		}
+		HttpEntity entity = mResponse.getEntity();
+		if (entity != null) {
+			try {
+				entity.consumeContent();
+			} catch (IOException e) {
+				// The connection is closed rather than reused.
+				Log.w(TAG, "Could not read the rest of the response to " + mRequest.getURI(), e);
+			}
+		}
+		mClosed = System.currentTimeMillis();
+		Log.i(TAG, mRequest.getMethod() + " " + mRequest.getURI().getPath() + ": "
+				+ mResponse.getStatusLine().getStatusCode() + ", connect " + getConnectMillis()
+				+ " ms, first byte " + getFirstByteMillis() + " ms, transfer " + getTransferMillis() + " ms");
+	}
+}
@@ -0,0 +1,336 @@
+/*******************************************************************************
+ * Copyright 2011 Kevin Gibbs and The Manta Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.mantasync;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.mantasync.Store.Base;
+import org.mantasync.Store.Meta_Index;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.util.Log;
+
+/**
+ * Chooses secondary indexes for the synced tables of an app, from the columns its queries use.
+ *
+ * Queries record the columns they filter on, through URI parameters or selections, and the
+ * columns they join and sort on. Once a kind has been synced, its recorded uses are added to its
+ * rows of the {@link Meta_Index} table, and indexes are created for the columns used most. An
+ * index whose column goes unused for {@link #MAX_IDLE_SYNCS} syncs is dropped again. The dirty
+ * flag gets an index of the dirty rows only, where SQLite supports partial indexes.
+ *
+ * Recording is thread-safe. Reviews run on the writer thread.
+ */
+class IndexAdvisor {
+	private static final String TAG = "Manta.IndexAdvisor";
+
+	// Prefix of the indexes created here, which are named __auto__Kind__column.
+	static final String INDEX_PREFIX = "__auto__";
+	// Uses of a column, over all syncs, before it is indexed.
+	static final int MIN_USES = 3;
+	// Syncs of a kind a column may go unused before its index is dropped.
+	static final int MAX_IDLE_SYNCS = 10;
+	// Indexes kept per kind, as each one slows down every write to it.
+	static final int MAX_INDEXES_PER_KIND = 6;
+
+	/**
+	 * A row of the meta table.
+	 */
+	private static class Usage {
+		long id = -1;
+		int uses;
+		int idleSyncs;
+		String index;
+		long created;
+	}
+
+	private final String mApp;
+	// Uses recorded since the last review, by kind and column.
+	private final ConcurrentHashMap<String, ConcurrentHashMap<String, AtomicInteger>> mUses =
+		new ConcurrentHashMap<String, ConcurrentHashMap<String, AtomicInteger>>();
+	private Boolean mPartialIndexes;
+
+	IndexAdvisor(String app) {
+		mApp = app;
+	}
+
+	void recordUse(String kind, String column) {
+		ConcurrentHashMap<String, AtomicInteger> uses = mUses.get(kind);
+		if (uses == null) {
+			uses = new ConcurrentHashMap<String, AtomicInteger>();
+			ConcurrentHashMap<String, AtomicInteger> existing = mUses.putIfAbsent(kind, uses);
+			if (existing != null) {
+				uses = existing;
+			}
+		}
+		AtomicInteger count = uses.get(column);
+		if (count == null) {
+			count = new AtomicInteger();
+			AtomicInteger existing = uses.putIfAbsent(column, count);
+			if (existing != null) {
+				count = existing;
+			}
+		}
+		count.incrementAndGet();
+	}
+
+	/**
+	 * Records the columns of catalogs used by a query: its URI parameters, selection and order.
+	 */
+	void recordQuery(Uri uri, String selection, String orderBy, ColumnCatalog... catalogs) {
+		if (uri.getEncodedQuery() != null && uri.getEncodedQuery().length() > 0) {
+			for (String column : Util.getQueryComponents(uri).keySet()) {
+				recordColumn(catalogs, column);
+			}
+		}
+		recordExpression(selection, catalogs);
+		recordExpression(orderBy, catalogs);
+	}
+
+	/**
+	 * Records the columns the kinds of plan are joined on, on both sides of each join.
+	 */
+	void recordJoin(JoinPlan plan) {
+		ColumnCatalog[] catalogs = plan.getCatalogs();
+		for (int i = 1; i < catalogs.length; ++i) {
+			String column = plan.getJoinColumn(i);
+			if (column != null) {
+				recordUse(catalogs[i].getKind(), column);
+				recordUse(catalogs[plan.getJoinedTo(i)].getKind(), column);
+			}
+		}
+	}
+
+	private void recordColumn(ColumnCatalog[] catalogs, String column) {
+		for (ColumnCatalog catalog : catalogs) {
+			int ordinal = catalog.getOrdinal(column);
+			// The key is indexed by its table already. Of the other built-in columns, only the dirty
+			// flag is searched on.
+			if (ordinal != -1 && (!catalog.isBuiltIn(ordinal) || column.equals(Base.DIRTY))) {
+				recordUse(catalog.getKind(), column);
+			}
+		}
+	}
+
+	/**
+	 * Records every column named in an SQL expression, skipping string literals.
+	 */
+	private void recordExpression(String sql, ColumnCatalog[] catalogs) {
+		if (sql == null) {
+			return;
+		}
+		int length = sql.length();
+		int i = 0;
+		while (i < length) {
+			char c = sql.charAt(i);
+			if (c == '\'') {
+				int end = sql.indexOf('\'', i + 1);
+				if (end == -1) {
+					return;
+				}
+				i = end + 1;
+			} else if (isIdentifierPart(c)) {
+				int start = i;
+				while (i < length && isIdentifierPart(sql.charAt(i))) {
+					++i;
+				}
+				if (!Character.isDigit(c)) {
+					recordColumn(catalogs, sql.substring(start, i));
+				}
+			} else {
+				++i;
+			}
+		}
+	}
+
+	private static boolean isIdentifierPart(char c) {
+		return Character.isLetterOrDigit(c) || c == '_';
+	}
+
+	/**
+	 * Adds the uses recorded for the kind of catalog to the meta table, and creates and drops its
+	 * indexes accordingly. Called on the writer thread once the kind has been synced, so that
+	 * indexes are never built while a download is being written.
+	 */
+	void review(SQLiteDatabase db, SQLiteDatabase metaDb, ColumnCatalog catalog) {
+		String kind = catalog.getKind();
+		Map<String, AtomicInteger> recorded = mUses.remove(kind);
+		Map<String, Usage> usages = loadUsages(metaDb, kind);
+		if (recorded == null && usages.isEmpty()) {
+			return;
+		}
+
+		for (Entry<String, Usage> entry : usages.entrySet()) {
+			AtomicInteger count = recorded == null ? null : recorded.get(entry.getKey());
+			if (count == null) {
+				entry.getValue().idleSyncs++;
+			} else {
+				entry.getValue().uses += count.get();
+				entry.getValue().idleSyncs = 0;
+			}
+		}
+		if (recorded != null) {
+			for (Entry<String, AtomicInteger> entry : recorded.entrySet()) {
+				if (!usages.containsKey(entry.getKey())) {
+					Usage usage = new Usage();
+					usage.uses = entry.getValue().get();
+					usages.put(entry.getKey(), usage);
+				}
+			}
+		}
+
+		// Forget indexes that are gone, for instance with their table, and drop unused ones.
+		Set<String> existing = new HashSet<String>();
+		Cursor c = db.rawQuery("SELECT name FROM sqlite_master WHERE type = 'index' AND tbl_name = ?",
+				new String[] { kind });
+		while (c.moveToNext()) {
+			existing.add(c.getString(0));
+		}
+		c.close();
+		int indexes = 0;
+		for (Entry<String, Usage> entry : usages.entrySet()) {
+			Usage usage = entry.getValue();
+			if (usage.index == null) {
+				continue;
+			}
+			if (!existing.contains(usage.index)) {
+				usage.index = null;
+				usage.created = 0;
+			} else if (usage.idleSyncs >= MAX_IDLE_SYNCS || !catalog.contains(entry.getKey())) {
+				Log.i(TAG, "Dropping unused index " + usage.index);
+				db.execSQL("DROP INDEX IF EXISTS '" + usage.index + "'");
+				usage.index = null;
+				usage.created = 0;
+			} else {
+				indexes++;
+			}
+		}
+
+		// Index the columns used most, that were used during the last sync.
+		List<Entry<String, Usage>> candidates = new ArrayList<Entry<String, Usage>>();
+		for (Entry<String, Usage> entry : usages.entrySet()) {
+			Usage usage = entry.getValue();
+			if (usage.index == null && usage.idleSyncs == 0 && usage.uses >= MIN_USES
+					&& catalog.contains(entry.getKey())) {
+				candidates.add(entry);
+			}
+		}
+		Collections.sort(candidates, new Comparator<Entry<String, Usage>>() {
+			public int compare(Entry<String, Usage> a, Entry<String, Usage> b) {
+				return b.getValue().uses - a.getValue().uses;
+			}
+		});
+		for (Entry<String, Usage> entry : candidates) {
+			if (indexes >= MAX_INDEXES_PER_KIND) {
+				break;
+			}
+			String column = entry.getKey();
+			String index = INDEX_PREFIX + kind + "__" + column;
+			String sql = "CREATE INDEX IF NOT EXISTS '" + index + "' ON '" + kind + "' ('" + column + "')";
+			if (column.equals(Base.DIRTY) && supportsPartialIndexes(db)) {
+				// Only dirty rows are ever searched for, and there are few of them.
+				sql += " WHERE " + Base.DIRTY + " = 1";
+			}
+			long start = System.currentTimeMillis();
+			db.execSQL(sql);
+			Log.i(TAG, "Created index " + index + " in " + (System.currentTimeMillis() - start) + " ms");
+			entry.getValue().index = index;
+			entry.getValue().created = System.currentTimeMillis();
+			indexes++;
+		}
+
+		saveUsages(metaDb, kind, usages);
+	}
+
+	private Map<String, Usage> loadUsages(SQLiteDatabase metaDb, String kind) {
+		Map<String, Usage> usages = new LinkedHashMap<String, Usage>();
+		Cursor c = metaDb.query(Meta_Index.TABLE_NAME, new String[] { Meta_Index._ID, Meta_Index.COLUMN_NAME,
+				Meta_Index.USES, Meta_Index.IDLE_SYNCS, Meta_Index.INDEX_NAME, Meta_Index.CREATED },
+				Meta_Index.APP + " = ? AND " + Meta_Index.KIND + " = ?", new String[] { mApp, kind },
+				null, null, null);
+		while (c.moveToNext()) {
+			Usage usage = new Usage();
+			usage.id = c.getLong(0);
+			usage.uses = c.getInt(2);
+			usage.idleSyncs = c.getInt(3);
+			usage.index = c.getString(4);
+			usage.created = c.getLong(5);
+			usages.put(c.getString(1), usage);
+		}
+		c.close();
+		return usages;
+	}
+
+	private void saveUsages(SQLiteDatabase metaDb, String kind, Map<String, Usage> usages) {
+		ContentValues values = new ContentValues();
+		metaDb.beginTransaction();
+		try {
+			for (Entry<String, Usage> entry : usages.entrySet()) {
+				Usage usage = entry.getValue();
+				if (usage.index == null && usage.idleSyncs >= MAX_IDLE_SYNCS) {
+					// Neither indexed nor used lately, forget it.
+					if (usage.id != -1) {
+						metaDb.delete(Meta_Index.TABLE_NAME, Meta_Index._ID + " = " + usage.id, null);
+					}
+					continue;
+				}
+				values.clear();
+				values.put(Meta_Index.USES, usage.uses);
+				values.put(Meta_Index.IDLE_SYNCS, usage.idleSyncs);
+				values.put(Meta_Index.INDEX_NAME, usage.index);
+				values.put(Meta_Index.CREATED, usage.created);
+				if (usage.id == -1) {
+					values.put(Meta_Index.APP, mApp);
+					values.put(Meta_Index.KIND, kind);
+					values.put(Meta_Index.COLUMN_NAME, entry.getKey());
+					metaDb.insert(Meta_Index.TABLE_NAME, null, values);
+				} else {
+					metaDb.update(Meta_Index.TABLE_NAME, values, Meta_Index._ID + " = " + usage.id, null);
+				}
+			}
+			metaDb.setTransactionSuccessful();
+		} finally {
+			metaDb.endTransaction();
+		}
+	}
+
+	/**
+	 * Returns true if the SQLite library has partial indexes, which came with version 3.8.0.
+	 */
+	private boolean supportsPartialIndexes(SQLiteDatabase db) {
+		if (mPartialIndexes == null) {
+			String[] version = DatabaseUtils.stringForQuery(db, "SELECT sqlite_version()", null).split("\\.");
+			int major = Integer.parseInt(version[0]);
+			int minor = version.length > 1 ? Integer.parseInt(version[1]) : 0;
+			mPartialIndexes = major > 3 || (major == 3 && minor >= 8);
+		}
+		return mPartialIndexes;
+	}
+}
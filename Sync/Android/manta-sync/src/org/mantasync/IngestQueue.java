@@ -0,0 +1,180 @@
+/*******************************************************************************
+ * Copyright 2011 Kevin Gibbs and The Manta Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.mantasync;
+
+import java.util.LinkedList;
+import java.util.concurrent.Executor;
+
+/**
+ * Bounded hand-off of decoded entities from the thread reading a download to the thread writing
+ * them to the database, so that the network is read while earlier rows are being committed.
+ *
+ * The reading thread fills {@link Batch}es and submits them; each batch is then written on the
+ * writer executor. Submitting blocks while too many batches, or too many bytes, are waiting to be
+ * written. Written batches are kept for reuse, along with their rows.
+ */
+class IngestQueue {
+
+	/**
+	 * Writes one batch. Called on the writer executor, one batch at a time.
+	 */
+	interface Writer {
+		void write(Batch batch);
+	}
+
+	/**
+	 * A reusable batch of decoded rows.
+	 */
+	static class Batch {
+		RowDecoder.Row[] rows = new RowDecoder.Row[16];
+		int size;
+		long bytes;
+
+		/**
+		 * Returns a cleared row appended to the batch, to be decoded into.
+		 */
+		RowDecoder.Row add() {
+			if (size == rows.length) {
+				RowDecoder.Row[] newRows = new RowDecoder.Row[rows.length * 2];
+				System.arraycopy(rows, 0, newRows, 0, rows.length);
+				rows = newRows;
+			}
+			if (rows[size] == null) {
+				rows[size] = new RowDecoder.Row();
+			}
+			return rows[size++];
+		}
+
+		/**
+		 * Drops the last row returned by {@link #add()}, for when nothing was decoded into it.
+		 */
+		void removeLast() {
+			--size;
+		}
+
+		void clear() {
+			size = 0;
+			bytes = 0;
+		}
+	}
+
+	private final Executor mExecutor;
+	private final Writer mWriter;
+	private final int mMaxBatches;
+	private final long mMaxBytes;
+
+	private final LinkedList<Batch> mFree = new LinkedList<Batch>();
+	private int mBatchesInFlight = 0;
+	private long mBytesInFlight = 0;
+	private volatile RuntimeException mFailure;
+	private volatile boolean mStopped;
+
+	/**
+	 * @param maxBatches the number of batches that may be waiting or being written at once
+	 * @param maxBytes the number of decoded bytes that may be waiting or being written at once,
+	 * although a single batch is always accepted
+	 */
+	IngestQueue(Executor executor, Writer writer, int maxBatches, long maxBytes) {
+		mExecutor = executor;
+		mWriter = writer;
+		mMaxBatches = maxBatches;
+		mMaxBytes = maxBytes;
+	}
+
+	synchronized Batch obtain() {
+		return mFree.isEmpty() ? new Batch() : mFree.removeFirst();
+	}
+
+	/**
+	 * Queues batch to be written, waiting until there is room for it. The batch must not be used
+	 * by the caller afterwards.
+	 */
+	void submit(final Batch batch) throws InterruptedException {
+		synchronized (this) {
+			while (mBatchesInFlight > 0
+					&& (mBatchesInFlight >= mMaxBatches || mBytesInFlight + batch.bytes > mMaxBytes)) {
+				wait();
+			}
+			mBatchesInFlight++;
+			mBytesInFlight += batch.bytes;
+		}
+		mExecutor.execute(new Runnable() {
+			public void run() {
+				try {
+					if (mFailure == null && !mStopped) {
+						mWriter.write(batch);
+					}
+				} catch (RuntimeException e) {
+					mFailure = e;
+				} finally {
+					release(batch);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Waits until every submitted batch has been written.
+	 */
+	synchronized void drain() throws InterruptedException {
+		while (mBatchesInFlight > 0) {
+			wait();
+		}
+	}
+
+	/**
+	 * Drops the submitted batches that have not started to be written, and any submitted later.
+	 */
+	void stop() {
+		mStopped = true;
+	}
+
+	/**
+	 * Waits until every submitted batch has been written or dropped, without giving up when
+	 * interrupted. An interrupt is kept for the caller to see.
+	 */
+	void drainUninterruptibly() {
+		boolean interrupted = false;
+		synchronized (this) {
+			while (mBatchesInFlight > 0) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Returns the exception thrown by the writer, if any. Once the writer fails, the batches
+	 * still queued are discarded.
+	 */
+	RuntimeException getFailure() {
+		return mFailure;
+	}
+
+	private synchronized void release(Batch batch) {
+		mBatchesInFlight--;
+		mBytesInFlight -= batch.bytes;
+		batch.clear();
+		mFree.add(batch);
+		notifyAll();
+	}
+}
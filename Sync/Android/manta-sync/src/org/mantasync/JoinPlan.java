@@ -0,0 +1,230 @@
+/*******************************************************************************
+ * Copyright 2011 Kevin Gibbs and The Manta Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.mantasync;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.mantasync.Store.Base;
+
+/**
+ * How a join URI such as app/kind.joinKind, or app/Group.Client.Loan, is queried: the FROM clause
+ * joining the kinds, and the projections already rewritten for it.
+ *
+ * Each kind after the first is joined on the column it shares with the kind before it, or
+ * failing that with the nearest earlier kind it shares one with. The whole chain is then queried
+ * as a single statement.
+ *
+ * A plan is made for the catalogs of its kinds, and is replaced once any kind's columns change.
+ */
+class JoinPlan {
+	// Rewritten projections kept per plan. Apps issue a handful of distinct projections.
+	private static final int MAX_PROJECTIONS = 16;
+
+	private final ColumnCatalog[] mCatalogs;
+	private final String mName;
+	private final String mQuotedKind;
+	// The column each kind is joined on, and the earlier kind it is joined to, or null and -1.
+	private final String[] mJoinColumns;
+	private final int[] mJoinedTo;
+	private final String mTables;
+	private final String[] mDefaultProjection;
+	private final ConcurrentHashMap<List<String>, String[]> mProjections =
+		new ConcurrentHashMap<List<String>, String[]>();
+
+	/**
+	 * @param catalogs the catalogs of the kinds to join, in the order of the URI
+	 */
+	JoinPlan(ColumnCatalog... catalogs) {
+		mCatalogs = catalogs;
+		mName = getName(catalogs);
+		mQuotedKind = "'" + catalogs[0].getKind() + "'";
+		mJoinColumns = new String[catalogs.length];
+		mJoinedTo = new int[catalogs.length];
+		mJoinedTo[0] = -1;
+		StringBuilder tables = new StringBuilder(mQuotedKind);
+		for (int i = 1; i < catalogs.length; ++i) {
+			String quotedKind = "'" + catalogs[i].getKind() + "'";
+			String joinColumn = null;
+			int j = i - 1;
+			for (; j >= 0 && joinColumn == null; --j) {
+				joinColumn = findJoinColumn(catalogs[j], catalogs[i]);
+			}
+			mJoinColumns[i] = joinColumn;
+			mJoinedTo[i] = joinColumn == null ? -1 : j + 1;
+			if (joinColumn == null) {
+				// Assume the selection will make the join reasonable.
+				tables.append(", ").append(quotedKind);
+			} else {
+				tables.append(" join ").append(quotedKind)
+					.append(" on ('").append(catalogs[j + 1].getKind()).append("'.").append(joinColumn)
+					.append(" = ").append(quotedKind).append('.').append(joinColumn).append(')');
+			}
+		}
+		mTables = tables.toString();
+		mDefaultProjection = rewriteProjection(null, mQuotedKind, mCatalogs);
+	}
+
+	/**
+	 * Returns the name plans for these catalogs are kept under, which is their kinds joined with '.'.
+	 */
+	static String getName(ColumnCatalog... catalogs) {
+		StringBuilder name = new StringBuilder(catalogs[0].getKind());
+		for (int i = 1; i < catalogs.length; ++i) {
+			name.append('.').append(catalogs[i].getKind());
+		}
+		return name.toString();
+	}
+
+	String getName() {
+		return mName;
+	}
+
+	/**
+	 * Returns true if the plan was made for exactly these catalogs.
+	 */
+	boolean isCurrent(ColumnCatalog... catalogs) {
+		if (catalogs.length != mCatalogs.length) {
+			return false;
+		}
+		for (int i = 0; i < catalogs.length; ++i) {
+			if (mCatalogs[i].getVersion() != catalogs[i].getVersion()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns true if kind is one of the joined kinds.
+	 */
+	boolean includes(String kind) {
+		for (ColumnCatalog catalog : mCatalogs) {
+			if (catalog.getKind().equals(kind)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	ColumnCatalog[] getCatalogs() {
+		return mCatalogs;
+	}
+
+	/**
+	 * Returns the column the kind at index is joined on, or null if it is not joined on any.
+	 */
+	String getJoinColumn(int index) {
+		return mJoinColumns[index];
+	}
+
+	/**
+	 * Returns the index of the earlier kind the kind at index is joined to, or -1.
+	 */
+	int getJoinedTo(int index) {
+		return mJoinedTo[index];
+	}
+
+	/**
+	 * Returns the FROM clause of the join.
+	 */
+	String getTables() {
+		return mTables;
+	}
+
+	/**
+	 * Returns projection rewritten for the join, as {@link #rewriteProjection} does. The returned
+	 * array is shared and must not be modified.
+	 */
+	String[] getProjection(String[] projection) {
+		if (projection == null) {
+			return mDefaultProjection;
+		}
+		List<String> key = Arrays.asList(projection);
+		String[] rewritten = mProjections.get(key);
+		if (rewritten == null) {
+			rewritten = rewriteProjection(projection, mQuotedKind, mCatalogs);
+			if (mProjections.size() < MAX_PROJECTIONS) {
+				mProjections.put(Arrays.asList(projection.clone()), rewritten);
+			}
+		}
+		return rewritten;
+	}
+
+	/**
+	 * Returns the projection to query for. Columns missing from every table are selected as null,
+	 * the key is taken from the first table, and the first table's rowid is added as _id.
+	 */
+	static String[] rewriteProjection(String[] projection, String quotedKind, ColumnCatalog... catalogs) {
+		if (projection == null) {
+			return new String[] { "*", quotedKind + ".rowid as _id"};
+		}
+		String[] newProjection = new String[projection.length + 1];
+		for (int i = 0; i < projection.length; ++i) {
+			String column = projection[i];
+			if (column.equals(Base.KEY)) {
+				newProjection[i] = quotedKind + "." + Base.KEY + " as " + Base.KEY;
+			} else if (!column.contains(".") && !column.contains("(") && !ColumnCatalog.contains(catalogs, column)) {
+				newProjection[i] = "null as " + column;
+			} else {
+				newProjection[i] = column;
+			}
+		}
+		newProjection[projection.length] = quotedKind + ".rowid as _id";
+		return newProjection;
+	}
+
+	/**
+	 * Returns the column to join the tables of columns1 and columns2 on, or null if there is none.
+	 */
+	static String findJoinColumn(ColumnCatalog columns1, ColumnCatalog columns2) {
+		List<String> joinColumns = new ArrayList<String>();
+		List<String> idColumns = new ArrayList<String>();
+		for (int i = 0; i < columns2.size(); ++i) {
+			String col = columns2.getName(i);
+			if (col.equals(Base.TYPE) || col.equals(Base.KEY) || col.equals(Base.DATE) || col.equals(Base.REV) || col.equals(Base.DIRTY)) {
+				continue;
+			}
+			if (columns1.contains(col)) {
+				// TODO improvement: find all columns. if there is exactly one match, continue.
+				// if there is exactly one match containing ID, continue. otherwise, do NOT provide
+				// join, require client to provide in where block.
+				joinColumns.add(col);
+				if (col.endsWith("id")) {
+					idColumns.add(col);
+				}
+			}
+		}
+		Collections.sort(joinColumns);
+		Collections.sort(idColumns);
+		if (joinColumns.size() == 1) {
+			return joinColumns.get(0);
+		}
+		if (idColumns.size() == 1) {
+			return idColumns.get(0);
+		}
+		if (idColumns.size() > 1) {
+			return idColumns.get(0);
+		}
+		if (joinColumns.size() > 1) {
+			return joinColumns.get(0);
+		}
+		return null;
+	}
+}
@@ -0,0 +1,241 @@
+/*******************************************************************************
+ * Copyright 2011 Kevin Gibbs and The Manta Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.mantasync;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map.Entry;
+
+import org.codehaus.jackson.JsonGenerator;
+import org.mantasync.Store.Base;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * The local edits of a kind that have not been uploaded yet, one row per edited column of an
+ * entity, in a table of its own named {@link #PREFIX} + kind.
+ *
+ * Edits are also written to the kind's table, so that queries see them without any merging.
+ * A download overwrites rows with the server's values, so the overlay of the entities it wrote is
+ * applied again before each download transaction commits, and the overlay of the entities it
+ * deleted is dropped. Uploads are read from the overlay, which is then cleared.
+ *
+ * All statements work on sets of rows: an edit takes one statement per edited column, however
+ * many entities it matches.
+ */
+final class Overlay {
+	static final String PREFIX = "__overlay__";
+
+	// Columns of an overlay table.
+	static final String SEQ = "seq";
+	static final String NAME = "name";
+	static final String VALUE = "value";
+
+	// The most keys bound to a single statement, well under SQLite's limit on host parameters.
+	private static final int MAX_KEYS = 500;
+
+	private Overlay() {}
+
+	static String getTable(String kind) {
+		return PREFIX + kind;
+	}
+
+	static boolean isOverlay(String table) {
+		return table.startsWith(PREFIX);
+	}
+
+	static void create(SQLiteDatabase db, String kind) {
+		// Replacing an edit of the same column deletes the old row, so seq orders the latest edits.
+		db.execSQL("CREATE TABLE IF NOT EXISTS '" + getTable(kind) + "' ("
+				+ SEQ + " INTEGER PRIMARY KEY, "
+				+ Base.KEY + " TEXT NOT NULL, "
+				+ NAME + " TEXT NOT NULL, "
+				+ VALUE + ", "
+				+ "UNIQUE (" + Base.KEY + ", " + NAME + ")"
+				+ ");");
+	}
+
+	/**
+	 * Records an edit of the entities of kind matching where. Must be called before the edit is
+	 * applied to the kind's table, as the edit may change which entities match.
+	 */
+	static void record(SQLiteDatabase db, String kind, String where, String[] whereArgs, ContentValues values) {
+		String sql = "INSERT OR REPLACE INTO '" + getTable(kind) + "' (" + Base.KEY + ", " + NAME + ", "
+				+ VALUE + ") SELECT " + Base.KEY + ", ?, ? FROM '" + kind + "' WHERE " + where;
+		int argCount = whereArgs == null ? 0 : whereArgs.length;
+		for (Entry<String, Object> value : values.valueSet()) {
+			Object[] bindArgs = new Object[2 + argCount];
+			bindArgs[0] = value.getKey();
+			bindArgs[1] = value.getValue();
+			for (int i = 0; i < argCount; ++i) {
+				bindArgs[2 + i] = whereArgs[i];
+			}
+			db.execSQL(sql, bindArgs);
+		}
+	}
+
+	/**
+	 * Records edits of a single entity, as kept before overlays in its {@link Base#CHANGES}.
+	 */
+	static void record(SQLiteDatabase db, String kind, String key, Iterable<Entry<String, Object>> values) {
+		String sql = "INSERT OR REPLACE INTO '" + getTable(kind) + "' (" + Base.KEY + ", " + NAME + ", "
+				+ VALUE + ") VALUES (?, ?, ?)";
+		for (Entry<String, Object> value : values) {
+			db.execSQL(sql, new Object[] { key, value.getKey(), value.getValue() });
+		}
+	}
+
+	/**
+	 * Writes the edits of the given entities of kind into its table again, over the values of a 
+	 * download, and marks the edited entities dirty. Entities deleted by the download stay deleted.
+	 */
+	static void reapply(SQLiteDatabase db, String kind, List<String> keys) {
+		String overlay = "'" + getTable(kind) + "'";
+		String kindQuoted = "'" + kind + "'";
+		for (int start = 0; start < keys.size(); start += MAX_KEYS) {
+			List<String> chunk = keys.subList(start, Math.min(keys.size(), start + MAX_KEYS));
+			String in = getPlaceholders(chunk.size());
+			String[] keyArgs = chunk.toArray(new String[chunk.size()]);
+			// Downloads rarely touch edited entities, and the key lookups use the overlay's index.
+			List<String> names = new ArrayList<String>();
+			Cursor c = db.rawQuery("SELECT DISTINCT " + NAME + " FROM " + overlay + " WHERE " + Base.KEY + " IN ("
+					+ in + ")", keyArgs);
+			while (c.moveToNext()) {
+				names.add(c.getString(0));
+			}
+			c.close();
+			if (names.isEmpty()) {
+				continue;
+			}
+			for (String name : names) {
+				Object[] bindArgs = new Object[1 + keyArgs.length];
+				bindArgs[0] = name;
+				System.arraycopy(keyArgs, 0, bindArgs, 1, keyArgs.length);
+				db.execSQL("UPDATE " + kindQuoted + " SET '" + name + "' = (SELECT " + VALUE + " FROM " + overlay
+						+ " o WHERE o." + Base.KEY + " = " + kindQuoted + "." + Base.KEY + " AND o." + NAME + " = ?1) "
+						+ "WHERE " + Base.KEY + " IN (" + in + ") AND EXISTS (SELECT 1 FROM " + overlay + " o WHERE o."
+						+ Base.KEY + " = " + kindQuoted + "." + Base.KEY + " AND o." + NAME + " = ?1)", bindArgs);
+			}
+			db.execSQL("UPDATE " + kindQuoted + " SET " + Base.DIRTY + " = 1 WHERE " + Base.DIRTY + " = 0 AND "
+					+ Base.KEY + " IN (" + in + ") AND EXISTS (SELECT 1 FROM " + overlay + " o WHERE o." + Base.KEY
+					+ " = " + kindQuoted + "." + Base.KEY + ")", keyArgs);
+		}
+	}
+
+	/**
+	 * Deletes the edits of the given entities of kind, once a download has deleted them, so that
+	 * they are not applied to an entity created later under the same key.
+	 */
+	static void delete(SQLiteDatabase db, String kind, List<String> keys) {
+		String overlay = "'" + getTable(kind) + "'";
+		for (int start = 0; start < keys.size(); start += MAX_KEYS) {
+			List<String> chunk = keys.subList(start, Math.min(keys.size(), start + MAX_KEYS));
+			db.execSQL("DELETE FROM " + overlay + " WHERE " + Base.KEY + " IN (" + getPlaceholders(chunk.size()) 
+					+ ")", chunk.toArray());
+		}
+	}
+
+	/**
+	 * Returns the sequence number of the latest edit of kind, or 0 if there are none. Edits made 
+	 * later have greater numbers.
+	 */
+	static long getSnapshot(SQLiteDatabase db, String kind) {
+		return DatabaseUtils.longForQuery(db, "SELECT ifnull(max(" + SEQ + "), 0) FROM '" + getTable(kind) + "'", 
+				null);
+	}
+
+	/**
+	 * Writes the edits of entities of kind matching where as a JSON array of objects, each holding 
+	 * the entity's key and its edited columns. Only edits up to snapshot are written, for at most 
+	 * maxEntities entities whose keys follow afterKey, in key order. The keys written are added to 
+	 * keys.
+	 */
+	static void write(SQLiteDatabase db, String kind, String where, long snapshot, String afterKey, 
+			int maxEntities, JsonGenerator out, List<String> keys) throws IOException {
+		String overlay = "'" + getTable(kind) + "'";
+		Cursor c = db.rawQuery("SELECT " + Base.KEY + ", " + NAME + ", " + VALUE + ", typeof(" + VALUE + ") FROM "
+				+ overlay + " WHERE " + SEQ + " <= " + snapshot + " AND " + Base.KEY + " IN (SELECT DISTINCT "
+				+ Base.KEY + " FROM " + overlay + " WHERE " + SEQ + " <= " + snapshot + " AND " + Base.KEY + " > ? AND "
+				+ Base.KEY + " IN (SELECT " + Base.KEY + " FROM '" + kind + "' WHERE " + where + ") ORDER BY "
+				+ Base.KEY + " LIMIT " + maxEntities + ") ORDER BY " + Base.KEY + ", " + SEQ, 
+				new String[] { afterKey == null ? "" : afterKey });
+		try {
+			out.writeStartArray();
+			String current = null;
+			while (c.moveToNext()) {
+				String key = c.getString(0);
+				if (!key.equals(current)) {
+					if (current != null) {
+						out.writeEndObject();
+					}
+					out.writeStartObject();
+					out.writeStringField(Base.KEY, key);
+					current = key;
+					keys.add(key);
+				}
+				out.writeFieldName(c.getString(1));
+				String type = c.getString(3);
+				if (type.equals("integer")) {
+					out.writeNumber(c.getLong(2));
+				} else if (type.equals("real")) {
+					out.writeNumber(c.getDouble(2));
+				} else if (type.equals("null")) {
+					out.writeNull();
+				} else if (type.equals("blob")) {
+					out.writeBinary(c.getBlob(2));
+				} else {
+					out.writeString(c.getString(2));
+				}
+			}
+			if (current != null) {
+				out.writeEndObject();
+			}
+			out.writeEndArray();
+		} finally {
+			c.close();
+		}
+	}
+
+	/**
+	 * Deletes the edits of the given entities of kind up to snapshot, once they have been uploaded,
+	 * and marks the entities left without edits clean. Later edits are kept for the next upload.
+	 */
+	static void clear(SQLiteDatabase db, String kind, List<String> keys, long snapshot) {
+		if (keys.isEmpty()) {
+			return;
+		}
+		String in = getPlaceholders(keys.size());
+		String overlay = "'" + getTable(kind) + "'";
+		Object[] bindArgs = keys.toArray();
+		db.execSQL("DELETE FROM " + overlay + " WHERE " + SEQ + " <= " + snapshot + " AND " + Base.KEY + " IN ("
+				+ in + ")", bindArgs);
+		db.execSQL("UPDATE '" + kind + "' SET " + Base.DIRTY + " = 0, " + Base.CHANGES + " = NULL WHERE " 
+				+ Base.KEY + " IN (" + in + ") AND " + Base.KEY + " NOT IN (SELECT " + Base.KEY + " FROM " + overlay
+				+ ")", bindArgs);
+	}
+
+	private static String getPlaceholders(int count) {
+		StringBuilder in = new StringBuilder("?");
+		for (int i = 1; i < count; ++i) {
+			in.append(", ?");
+		}
+		return in.toString();
+	}
+}
@@ -0,0 +1,205 @@
+/*******************************************************************************
+ * Copyright 2011 Kevin Gibbs and The Manta Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.mantasync;
+
+import java.util.Arrays;
+
+/**
+ * The revision and rowid of every entity of a kind, held in flat arrays so that large kinds can
+ * be indexed without creating entries or boxed values per entity.
+ *
+ * Entities are found by a 64-bit hash of their key, in an open-addressing table. Revisions are
+ * stored as numbers, which is what the server generates. An entity whose revision or rowid does
+ * not fit, or whose key hash is shared with another entity, is still marked as present but
+ * matches no revision, so that it is always checked against the database.
+ *
+ * Revisions are small numbers, so a new key sharing the hash of an indexed one would often match
+ * its revision too, and be skipped. The key of each entity is therefore kept as well, and a 
+ * revision only matches if the keys are equal.
+ *
+ * The table is not synchronized; it may be read from several threads once it has been loaded.
+ */
+class RevisionIndex {
+	// Hash marking an empty slot. Keys hashing to it are moved to EMPTY + 1.
+	private static final long EMPTY = 0;
+	private static final int UNKNOWN_REV = -1;
+	private static final long UNKNOWN_ROWID = 0xffffffffL;
+	private static final long UNKNOWN = ((long)UNKNOWN_REV << 32) | UNKNOWN_ROWID;
+
+	private static final int MIN_CAPACITY = 16;
+
+	private long[] mHashes = new long[MIN_CAPACITY];
+	// Revision in the high 32 bits, rowid in the low 32 bits.
+	private long[] mValues = new long[MIN_CAPACITY];
+	// The key of each entity, checked before a revision matches.
+	private String[] mKeys = new String[MIN_CAPACITY];
+	private int mSize = 0;
+	private int mCollisions = 0;
+
+	/**
+	 * Empties the index, keeping its arrays for the next kind.
+	 */
+	void clear() {
+		Arrays.fill(mHashes, EMPTY);
+		Arrays.fill(mKeys, null);
+		mSize = 0;
+		mCollisions = 0;
+	}
+
+	/**
+	 * Empties the index and lets go of its arrays.
+	 */
+	void trim() {
+		mHashes = new long[MIN_CAPACITY];
+		mValues = new long[MIN_CAPACITY];
+		mKeys = new String[MIN_CAPACITY];
+		mSize = 0;
+		mCollisions = 0;
+	}
+
+	int size() {
+		return mSize;
+	}
+
+	/**
+	 * Returns the number of keys whose hash was shared with another key.
+	 */
+	int getCollisions() {
+		return mCollisions;
+	}
+
+	/**
+	 * Returns the number of bytes held by the index, not counting the keys themselves.
+	 */
+	long getMemoryBytes() {
+		return 8L * (mHashes.length + mValues.length) + 4L * mKeys.length;
+	}
+
+	void put(String key, String rev, long rowid) {
+		if ((mSize + 1) * 4 > mHashes.length * 3) {
+			resize(mHashes.length * 2);
+		}
+		long hash = hash(key);
+		int slot = probe(mHashes, hash);
+		if (mHashes[slot] == hash) {
+			// Two keys share this hash, so neither can be trusted; both are verified in the database.
+			if (mValues[slot] != UNKNOWN) {
+				mValues[slot] = UNKNOWN;
+				mCollisions++;
+			}
+			mCollisions++;
+			return;
+		}
+		int revision = parseRevision(rev);
+		mHashes[slot] = hash;
+		mValues[slot] = ((long)revision << 32)
+				| (rowid >= 0 && rowid < UNKNOWN_ROWID ? rowid : UNKNOWN_ROWID);
+		mKeys[slot] = key;
+		mSize++;
+	}
+
+	/**
+	 * Returns the slot of key, or -1 if it is not present or null.
+	 */
+	int find(String key) {
+		if (key == null) {
+			return -1;
+		}
+		long hash = hash(key);
+		int slot = probe(mHashes, hash);
+		return mHashes[slot] == hash ? slot : -1;
+	}
+
+	/**
+	 * Returns true if the entity at slot, found for key, is known to be key and to have the 
+	 * revision rev.
+	 */
+	boolean hasRevision(int slot, String key, String rev) {
+		int revision = (int)(mValues[slot] >> 32);
+		return revision != UNKNOWN_REV && key.equals(mKeys[slot]) && revision == parseRevision(rev);
+	}
+
+	/**
+	 * Returns the rowid of the entity at slot, or -1 if it is not known.
+	 */
+	long getRowid(int slot) {
+		long rowid = mValues[slot] & UNKNOWN_ROWID;
+		return rowid == UNKNOWN_ROWID ? -1 : rowid;
+	}
+
+	private void resize(int capacity) {
+		long[] hashes = mHashes;
+		long[] values = mValues;
+		String[] keys = mKeys;
+		mHashes = new long[capacity];
+		mValues = new long[capacity];
+		mKeys = new String[capacity];
+		for (int i = 0; i < hashes.length; ++i) {
+			if (hashes[i] != EMPTY) {
+				int slot = probe(mHashes, hashes[i]);
+				mHashes[slot] = hashes[i];
+				mValues[slot] = values[i];
+				mKeys[slot] = keys[i];
+			}
+		}
+	}
+
+	/**
+	 * Returns the slot holding hash, or the empty slot where it belongs. Capacities are powers of 2.
+	 */
+	private static int probe(long[] hashes, long hash) {
+		int mask = hashes.length - 1;
+		int slot = (int)(hash ^ (hash >>> 32)) & mask;
+		while (hashes[slot] != EMPTY && hashes[slot] != hash) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	/**
+	 * 64-bit FNV-1a hash of the characters of key.
+	 */
+	static long hash(String key) {
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0, length = key.length(); i < length; ++i) {
+			char c = key.charAt(i);
+			hash ^= c & 0xff;
+			hash *= 0x100000001b3L;
+			hash ^= c >>> 8;
+			hash *= 0x100000001b3L;
+		}
+		return hash == EMPTY ? EMPTY + 1 : hash;
+	}
+
+	/**
+	 * Parses a revision number without allocating, returning UNKNOWN_REV if it is not one.
+	 */
+	private static int parseRevision(String rev) {
+		int length = rev == null ? 0 : rev.length();
+		if (length == 0 || length > 9 || (length > 1 && rev.charAt(0) == '0')) {
+			return UNKNOWN_REV;
+		}
+		int revision = 0;
+		for (int i = 0; i < length; ++i) {
+			int digit = rev.charAt(i) - '0';
+			if (digit < 0 || digit > 9) {
+				return UNKNOWN_REV;
+			}
+			revision = revision * 10 + digit;
+		}
+		return revision;
+	}
+}
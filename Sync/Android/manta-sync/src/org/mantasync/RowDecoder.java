@@ -0,0 +1,379 @@
+/*******************************************************************************
+ * Copyright 2011 Kevin Gibbs and The Manta Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.mantasync;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.codehaus.jackson.JsonParseException;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+import org.mantasync.Store.Base;
+
+import android.util.Log;
+
+/**
+ * Streaming decoder for downloaded entities. The download is a JSON array of objects; each
+ * object is read exactly once, with its values written straight into a reusable {@link Row}.
+ *
+ * In the rows layout, the first element of the array lists the column names instead, and each
+ * entity that follows is an array of its values in the order of those columns. Values are then
+ * bound by their position, without reading any field names.
+ *
+ * Every field name seen during a download is assigned a slot, so the same field always lands in
+ * the same position of the row buffer and no per-row maps are created.
+ */
+class RowDecoder {
+	private static final String TAG = "Manta.RowDecoder";
+
+	static final int TYPE_NULL = 0;
+	static final int TYPE_LONG = 1;
+	static final int TYPE_DOUBLE = 2;
+	static final int TYPE_STRING = 3;
+	static final int TYPE_BOOLEAN = 4;
+
+	/**
+	 * A reusable buffer holding one decoded entity.
+	 */
+	static class Row {
+		String key;
+		String rev;
+		/**
+		 * True if every field that is not a built-in column is null, which marks a deletion.
+		 */
+		boolean allNull;
+		/**
+		 * Approximate number of bytes of data held in this row.
+		 */
+		int byteSize;
+
+		/**
+		 * Number of fields present in this row, and the slot of each of them, in document order.
+		 */
+		int size;
+		int[] fields = new int[16];
+
+		// Values, indexed by slot.
+		int[] types = new int[16];
+		long[] longs = new long[16];
+		double[] doubles = new double[16];
+		String[] strings = new String[16];
+
+		void clear() {
+			key = null;
+			rev = null;
+			allNull = true;
+			byteSize = 0;
+			size = 0;
+		}
+
+		void ensureSlots(int count) {
+			if (count <= types.length) {
+				return;
+			}
+			int length = Math.max(count, types.length * 2);
+			int[] newTypes = new int[length];
+			long[] newLongs = new long[length];
+			double[] newDoubles = new double[length];
+			String[] newStrings = new String[length];
+			System.arraycopy(types, 0, newTypes, 0, types.length);
+			System.arraycopy(longs, 0, newLongs, 0, longs.length);
+			System.arraycopy(doubles, 0, newDoubles, 0, doubles.length);
+			System.arraycopy(strings, 0, newStrings, 0, strings.length);
+			types = newTypes;
+			longs = newLongs;
+			doubles = newDoubles;
+			strings = newStrings;
+		}
+
+		int addField(int slot) {
+			if (size == fields.length) {
+				int[] newFields = new int[fields.length * 2];
+				System.arraycopy(fields, 0, newFields, 0, fields.length);
+				fields = newFields;
+			}
+			fields[size++] = slot;
+			return slot;
+		}
+	}
+
+	private final JsonParser mParser;
+	private final boolean mRows;
+	// In the rows layout, the slot of each column, by position.
+	private int[] mColumnSlots;
+	private final Map<String, Integer> mSlots = new HashMap<String, Integer>();
+	// Slot names are read from the writer thread while new slots are still being assigned by the
+	// decoding thread, so they are kept in arrays that are replaced, never modified, when they grow.
+	private volatile String[] mNames = new String[0];
+	private volatile boolean[] mBuiltIn = new boolean[0];
+	private int mKeySlot = -1;
+	private int mRevSlot = -1;
+
+	/**
+	 * Creates a decoder of the download read by jp, in the rows layout if rows is set.
+	 */
+	RowDecoder(JsonParser jp, boolean rows) {
+		mParser = jp;
+		mRows = rows;
+	}
+
+	/**
+	 * Reads the start of the download, and in the rows layout its columns. Returns false if the
+	 * data is not an array of entities.
+	 */
+	boolean start() throws IOException {
+		if (mParser.nextToken() != JsonToken.START_ARRAY) {
+			return false;
+		}
+		if (mRows) {
+			List<String> columns = readColumnNames(mParser);
+			if (columns == null) {
+				return false;
+			}
+			mColumnSlots = new int[columns.size()];
+			for (int i = 0; i < mColumnSlots.length; ++i) {
+				mColumnSlots[i] = getSlot(columns.get(i));
+			}
+		}
+		return true;
+	}
+
+	int getSlotCount() {
+		return mNames.length;
+	}
+
+	/**
+	 * Returns the field name of a slot. May be called from any thread, for any slot of a row that
+	 * was handed over by the decoding thread.
+	 */
+	String getName(int slot) {
+		return mNames[slot];
+	}
+
+	boolean isBuiltIn(int slot) {
+		return mBuiltIn[slot];
+	}
+
+	int getSlot(String name) {
+		Integer slot = mSlots.get(name);
+		if (slot == null) {
+			slot = mNames.length;
+			mSlots.put(name, slot);
+			String[] names = new String[slot + 1];
+			boolean[] builtIn = new boolean[slot + 1];
+			System.arraycopy(mNames, 0, names, 0, slot);
+			System.arraycopy(mBuiltIn, 0, builtIn, 0, slot);
+			names[slot] = name;
+			builtIn[slot] = ColumnCatalog.isBuiltInColumn(name);
+			mBuiltIn = builtIn;
+			mNames = names;
+			if (Base.KEY.equals(name)) {
+				mKeySlot = slot;
+			} else if (Base.REV.equals(name)) {
+				mRevSlot = slot;
+			}
+		}
+		return slot;
+	}
+
+	/**
+	 * Decodes the next entity into row, skipping any entity whose key and revision are already
+	 * present in presentRevs. Returns false once the end of the array is reached.
+	 */
+	boolean next(Row row, RevisionIndex presentRevs) throws IOException {
+		if (mRows) {
+			while (mParser.nextToken() == JsonToken.START_ARRAY) {
+				if (readRow(row, presentRevs)) {
+					return true;
+				}
+			}
+		} else {
+			while (mParser.nextToken() == JsonToken.START_OBJECT) {
+				if (readObject(row, presentRevs)) {
+					return true;
+				}
+			}
+		}
+		if (mParser.getCurrentToken() != JsonToken.END_ARRAY) {
+			throw new JsonParseException(mRows ? "Array contains non-row" : "Array contains non-object", 
+					mParser.getCurrentLocation());
+		}
+		return false;
+	}
+
+	private boolean readObject(Row row, RevisionIndex presentRevs) throws IOException {
+		row.clear();
+		while (mParser.nextToken() == JsonToken.FIELD_NAME) {
+			int slot = getSlot(mParser.getCurrentName());
+			row.ensureSlots(slot + 1);
+			if (!readField(row, slot, mParser.nextToken(), presentRevs)) {
+				skipRestOfObject();
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean readRow(Row row, RevisionIndex presentRevs) throws IOException {
+		row.clear();
+		row.ensureSlots(mNames.length);
+		int column = 0;
+		JsonToken token;
+		while ((token = mParser.nextToken()) != JsonToken.END_ARRAY) {
+			if (token == null || column == mColumnSlots.length) {
+				throw new JsonParseException("Row does not match the columns", mParser.getCurrentLocation());
+			}
+			if (!readField(row, mColumnSlots[column++], token, presentRevs)) {
+				skipRestOfRow();
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Reads the value of a field at token into row. Returns false if the entity should be skipped,
+	 * as its key and revision are already present in presentRevs.
+	 */
+	private boolean readField(Row row, int slot, JsonToken token, RevisionIndex presentRevs) throws IOException {
+		readValue(row, row.addField(slot), token);
+
+		if (slot == mKeySlot || slot == mRevSlot) {
+			String text = token == JsonToken.VALUE_NULL ? null : mParser.getText();
+			if (slot == mKeySlot) {
+				row.key = text;
+			} else {
+				row.rev = text;
+			}
+			if (row.key != null && row.rev != null) {
+				int entry = presentRevs.find(row.key);
+				if (entry != -1 && presentRevs.hasRevision(entry, row.key, row.rev)) {
+					// We already have this exact key and revision, so skip the rest of the entity.
+					return false;
+				}
+			}
+		} else if (row.allNull && token != JsonToken.VALUE_NULL && !isBuiltIn(slot)) {
+			// We have at least one non-built-in-column that has a value.
+			row.allNull = false;
+		}
+		return true;
+	}
+
+	private void readValue(Row row, int slot, JsonToken token) throws IOException {
+		switch (token) {
+		case VALUE_NUMBER_INT:
+			if (mParser.getNumberType() == JsonParser.NumberType.BIG_INTEGER) {
+				setString(row, slot, mParser.getText());
+			} else {
+				row.types[slot] = TYPE_LONG;
+				row.longs[slot] = mParser.getLongValue();
+				row.byteSize += 8;
+			}
+			break;
+		case VALUE_NUMBER_FLOAT:
+			row.types[slot] = TYPE_DOUBLE;
+			row.doubles[slot] = mParser.getDoubleValue();
+			row.byteSize += 8;
+			break;
+		case VALUE_TRUE:
+		case VALUE_FALSE:
+			row.types[slot] = TYPE_BOOLEAN;
+			row.longs[slot] = token == JsonToken.VALUE_TRUE ? 1 : 0;
+			row.byteSize += 1;
+			break;
+		case VALUE_STRING:
+			setString(row, slot, mParser.getText());
+			break;
+		case VALUE_NULL:
+			row.types[slot] = TYPE_NULL;
+			break;
+		case START_ARRAY:
+		case START_OBJECT:
+			// TODO support array types and mapping types natively
+			Log.e(TAG, "Could not extract/use type from data, inserting generically");
+			setString(row, slot, mParser.readValueAsTree().toString());
+			break;
+		default:
+			throw new JsonParseException("Unexpected value in entity: " + token, mParser.getCurrentLocation());
+		}
+	}
+
+	private void setString(Row row, int slot, String value) {
+		row.types[slot] = TYPE_STRING;
+		row.strings[slot] = value;
+		row.byteSize += value.length();
+	}
+
+	/**
+	 * Reads a whole download, returning the names of the fields of its entities in the order they
+	 * first appear. Used to find the columns of a download before writing any of it. In the rows
+	 * layout, only the list of columns at its start is read.
+	 */
+	static List<String> readFieldNames(JsonParser jp, boolean rows) throws IOException {
+		if (rows) {
+			List<String> columns = null;
+			if (jp.nextToken() == JsonToken.START_ARRAY) {
+				columns = readColumnNames(jp);
+			}
+			return columns == null ? new ArrayList<String>() : columns;
+		}
+		Set<String> names = new LinkedHashSet<String>();
+		if (jp.nextToken() == JsonToken.START_ARRAY) {
+			while (jp.nextToken() == JsonToken.START_OBJECT) {
+				while (jp.nextToken() == JsonToken.FIELD_NAME) {
+					names.add(jp.getCurrentName());
+					jp.nextToken();
+					jp.skipChildren();
+				}
+			}
+		}
+		return new ArrayList<String>(names);
+	}
+
+	/**
+	 * Reads the array of column names that starts a download in the rows layout, or returns null
+	 * if there is none.
+	 */
+	private static List<String> readColumnNames(JsonParser jp) throws IOException {
+		if (jp.nextToken() != JsonToken.START_ARRAY) {
+			return null;
+		}
+		List<String> columns = new ArrayList<String>();
+		while (jp.nextToken() == JsonToken.VALUE_STRING) {
+			columns.add(jp.getText());
+		}
+		return jp.getCurrentToken() == JsonToken.END_ARRAY ? columns : null;
+	}
+
+	private void skipRestOfObject() throws IOException {
+		while (mParser.nextToken() == JsonToken.FIELD_NAME) {
+			mParser.nextToken();
+			mParser.skipChildren();
+		}
+	}
+
+	private void skipRestOfRow() throws IOException {
+		JsonToken token;
+		while ((token = mParser.nextToken()) != null && token != JsonToken.END_ARRAY) {
+			mParser.skipChildren();
+		}
+	}
+}
@@ -0,0 +1,369 @@
+/*******************************************************************************
+ * Copyright 2011 Kevin Gibbs and The Manta Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.mantasync;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.mantasync.Store.Base;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * Cache of compiled statements used when writing downloaded entities, for a single app database.
+ *
+ * Insert and update statements are compiled per kind and per set of columns, where a column set
+ * is given by the ordinals of the columns in the kind's table. Values are bound by position, see
+ * {@link ColumnSet#position(int)}. Each column set also has a temporary staging table, through
+ * which whole batches are applied in {@link StoreProvider.Mode#STAGED}.
+ */
+class StatementCache {
+
+	/**
+	 * The statements for one set of columns of a kind.
+	 */
+	static class ColumnSet {
+		final String mKindQuoted;
+		final String mStageQuoted;
+		final String[] mColumns;
+		final int[] mPositions;
+		SQLiteStatement mInsert;
+		SQLiteStatement mReplace;
+		SQLiteStatement mUpdate;
+		SQLiteStatement mStageInsert;
+		SQLiteStatement mStageDelete;
+		SQLiteStatement mStageUpdate;
+		SQLiteStatement mStageInsertNew;
+		SQLiteStatement mStageClear;
+
+		ColumnSet(String kindQuoted, String stage, BitSet ordinals, ColumnCatalog columns) {
+			mKindQuoted = kindQuoted;
+			mStageQuoted = "\"" + stage + "\"";
+			mColumns = new String[ordinals.cardinality()];
+			mPositions = new int[ordinals.length()];
+			Arrays.fill(mPositions, -1);
+			int i = 0;
+			for (int o = ordinals.nextSetBit(0); o >= 0; o = ordinals.nextSetBit(o + 1)) {
+				mColumns[i] = columns.getName(o);
+				mPositions[o] = ++i;
+			}
+		}
+
+		/**
+		 * Returns the 1-based bind position of the column with the given ordinal.
+		 */
+		int position(int ordinal) {
+			return mPositions[ordinal];
+		}
+
+		int size() {
+			return mColumns.length;
+		}
+
+		SQLiteStatement getInsert(SQLiteDatabase db) {
+			if (mInsert == null) {
+				mInsert = db.compileStatement(buildInsert("INSERT INTO "));
+			}
+			return mInsert;
+		}
+
+		SQLiteStatement getReplace(SQLiteDatabase db) {
+			if (mReplace == null) {
+				mReplace = db.compileStatement(buildInsert("INSERT OR REPLACE INTO "));
+			}
+			return mReplace;
+		}
+
+		/**
+		 * Returns an update of this column set by rowid. The rowid is bound at position size() + 1.
+		 */
+		SQLiteStatement getUpdate(SQLiteDatabase db) {
+			if (mUpdate == null) {
+				StringBuilder sql = new StringBuilder("UPDATE ").append(mKindQuoted).append(" SET ");
+				for (int i = 0; i < mColumns.length; ++i) {
+					if (i > 0) {
+						sql.append(", ");
+					}
+					sql.append('"').append(mColumns[i]).append("\" = ?");
+				}
+				sql.append(" WHERE rowid = ?");
+				mUpdate = db.compileStatement(sql.toString());
+			}
+			return mUpdate;
+		}
+
+		/**
+		 * Returns an insert into the staging table of this column set, creating the table if
+		 * needed. The tombstone flag is bound at position size() + 1. Entities staged twice keep
+		 * their last values.
+		 */
+		SQLiteStatement getStageInsert(SQLiteDatabase db) {
+			if (mStageInsert == null) {
+				StringBuilder sql = new StringBuilder("CREATE TEMP TABLE IF NOT EXISTS ")
+						.append(mStageQuoted).append(" (");
+				appendColumns(sql, "");
+				sql.append(", " + TOMBSTONE + " INTEGER, PRIMARY KEY (" + Base.KEY + "))");
+				db.execSQL(sql.toString());
+
+				sql = new StringBuilder("INSERT OR REPLACE INTO ").append(mStageQuoted).append(" (");
+				appendColumns(sql, "");
+				sql.append(", " + TOMBSTONE + ") VALUES (");
+				for (int i = 0; i <= mColumns.length; ++i) {
+					sql.append(i > 0 ? ", ?" : "?");
+				}
+				mStageInsert = db.compileStatement(sql.append(")").toString());
+			}
+			return mStageInsert;
+		}
+
+		/**
+		 * Returns a delete of every entity staged as a tombstone.
+		 */
+		SQLiteStatement getStageDelete(SQLiteDatabase db) {
+			if (mStageDelete == null) {
+				mStageDelete = db.compileStatement("DELETE FROM " + mKindQuoted + " WHERE " + Base.KEY
+						+ " IN (SELECT " + Base.KEY + " FROM " + mStageQuoted + " WHERE " + TOMBSTONE + ")");
+			}
+			return mStageDelete;
+		}
+
+		/**
+		 * Returns an update of every present entity whose staged revision differs, or null if
+		 * this column set holds nothing to update.
+		 */
+		SQLiteStatement getStageUpdate(SQLiteDatabase db) {
+			if (mStageUpdate == null) {
+				String match = " FROM " + mStageQuoted + " s WHERE s." + Base.KEY + " = " + mKindQuoted
+						+ "." + Base.KEY + ")";
+				StringBuilder sql = new StringBuilder("UPDATE ").append(mKindQuoted).append(" SET ");
+				boolean revision = false;
+				int set = 0;
+				for (String column : mColumns) {
+					if (column.equals(Base.KEY)) {
+						continue;
+					}
+					revision |= column.equals(Base.REV);
+					if (set++ > 0) {
+						sql.append(", ");
+					}
+					sql.append('"').append(column).append("\" = (SELECT s.\"").append(column)
+							.append('"').append(match);
+				}
+				if (set == 0) {
+					return null;
+				}
+				sql.append(" WHERE " + Base.KEY + " IN (SELECT " + Base.KEY + " FROM ").append(mStageQuoted)
+						.append(" WHERE NOT " + TOMBSTONE + ")");
+				if (revision) {
+					sql.append(" AND " + Base.REV + " IS NOT (SELECT s." + Base.REV).append(match);
+				}
+				mStageUpdate = db.compileStatement(sql.toString());
+			}
+			return mStageUpdate;
+		}
+
+		/**
+		 * Returns an insert of every staged entity that is not present yet.
+		 */
+		SQLiteStatement getStageInsertNew(SQLiteDatabase db) {
+			if (mStageInsertNew == null) {
+				StringBuilder sql = new StringBuilder("INSERT INTO ").append(mKindQuoted).append(" (");
+				appendColumns(sql, "");
+				sql.append(") SELECT ");
+				appendColumns(sql, "s.");
+				sql.append(" FROM ").append(mStageQuoted).append(" s WHERE NOT s." + TOMBSTONE
+						+ " AND NOT EXISTS (SELECT 1 FROM ").append(mKindQuoted).append(" k WHERE k."
+						+ Base.KEY + " = s." + Base.KEY + ")");
+				mStageInsertNew = db.compileStatement(sql.toString());
+			}
+			return mStageInsertNew;
+		}
+
+		SQLiteStatement getStageClear(SQLiteDatabase db) {
+			if (mStageClear == null) {
+				mStageClear = db.compileStatement("DELETE FROM " + mStageQuoted);
+			}
+			return mStageClear;
+		}
+
+		private String buildInsert(String verb) {
+			StringBuilder sql = new StringBuilder(verb).append(mKindQuoted).append(" (");
+			appendColumns(sql, "");
+			sql.append(") VALUES (");
+			for (int i = 0; i < mColumns.length; ++i) {
+				sql.append(i > 0 ? ", ?" : "?");
+			}
+			return sql.append(")").toString();
+		}
+
+		private void appendColumns(StringBuilder sql, String prefix) {
+			for (int i = 0; i < mColumns.length; ++i) {
+				if (i > 0) {
+					sql.append(", ");
+				}
+				sql.append(prefix).append('"').append(mColumns[i]).append('"');
+			}
+		}
+
+		void close() {
+			StatementCache.close(mInsert);
+			StatementCache.close(mReplace);
+			StatementCache.close(mUpdate);
+			StatementCache.close(mStageInsert);
+			StatementCache.close(mStageDelete);
+			StatementCache.close(mStageUpdate);
+			StatementCache.close(mStageInsertNew);
+			StatementCache.close(mStageClear);
+			mInsert = mReplace = mUpdate = null;
+			mStageInsert = mStageDelete = mStageUpdate = mStageInsertNew = mStageClear = null;
+		}
+	}
+
+	/**
+	 * All of the statements for a single kind.
+	 */
+	private static class KindStatements {
+		final String mKindQuoted;
+		final Map<BitSet, ColumnSet> mColumnSets = new HashMap<BitSet, ColumnSet>();
+		SQLiteStatement mDelete;
+		SQLiteStatement mRowidLookup;
+		SQLiteStatement mRevisionLookup;
+
+		KindStatements(String kind) {
+			mKindQuoted = "\"" + kind + "\"";
+		}
+
+		void close() {
+			for (ColumnSet set : mColumnSets.values()) {
+				set.close();
+			}
+			mColumnSets.clear();
+			StatementCache.close(mDelete);
+			StatementCache.close(mRowidLookup);
+			StatementCache.close(mRevisionLookup);
+			mDelete = mRowidLookup = mRevisionLookup = null;
+		}
+	}
+
+	/**
+	 * Name of the staging table column marking an entity to be deleted.
+	 */
+	static final String TOMBSTONE = "__tombstone__";
+
+	private final Map<String, KindStatements> mKinds = new HashMap<String, KindStatements>();
+	private SQLiteDatabase mDB;
+	private SQLiteStatement mChanges;
+	// Staging tables are temporary, so their names only need to be unique per connection.
+	private int mNextStage = 0;
+
+	private void checkDatabase(SQLiteDatabase db) {
+		if (db != mDB) {
+			// Statements are only valid for the connection that compiled them.
+			clear();
+			mDB = db;
+		}
+	}
+
+	private KindStatements getKind(SQLiteDatabase db, String kind) {
+		checkDatabase(db);
+		KindStatements statements = mKinds.get(kind);
+		if (statements == null) {
+			statements = new KindStatements(kind);
+			mKinds.put(kind, statements);
+		}
+		return statements;
+	}
+
+	/**
+	 * Returns the statements for the given set of column ordinals of kind. The ordinals are
+	 * positions in columns, the kind's catalog. The set passed in may be reused by the caller.
+	 */
+	ColumnSet getColumnSet(SQLiteDatabase db, String kind, BitSet ordinals, ColumnCatalog columns) {
+		KindStatements statements = getKind(db, kind);
+		ColumnSet set = statements.mColumnSets.get(ordinals);
+		if (set == null) {
+			set = new ColumnSet(statements.mKindQuoted, "__stage__" + mNextStage++, ordinals, columns);
+			statements.mColumnSets.put((BitSet)ordinals.clone(), set);
+		}
+		return set;
+	}
+
+	/**
+	 * Returns a delete of a single entity by key, bound at position 1.
+	 */
+	SQLiteStatement getDelete(SQLiteDatabase db, String kind) {
+		KindStatements statements = getKind(db, kind);
+		if (statements.mDelete == null) {
+			statements.mDelete = db.compileStatement("DELETE FROM " + statements.mKindQuoted
+					+ " WHERE " + Base.KEY + " = ?");
+		}
+		return statements.mDelete;
+	}
+
+	/**
+	 * Returns a query for the rowid of a single entity by key, bound at position 1.
+	 */
+	SQLiteStatement getRowidLookup(SQLiteDatabase db, String kind) {
+		KindStatements statements = getKind(db, kind);
+		if (statements.mRowidLookup == null) {
+			statements.mRowidLookup = db.compileStatement("SELECT rowid FROM " + statements.mKindQuoted
+					+ " WHERE " + Base.KEY + " = ?");
+		}
+		return statements.mRowidLookup;
+	}
+
+	/**
+	 * Returns a query for the revision of a single entity by rowid, bound at position 1, and key,
+	 * bound at position 2.
+	 */
+	SQLiteStatement getRevisionLookup(SQLiteDatabase db, String kind) {
+		KindStatements statements = getKind(db, kind);
+		if (statements.mRevisionLookup == null) {
+			statements.mRevisionLookup = db.compileStatement("SELECT " + Base.REV + " FROM "
+					+ statements.mKindQuoted + " WHERE rowid = ? AND " + Base.KEY + " = ?");
+		}
+		return statements.mRevisionLookup;
+	}
+
+	/**
+	 * Returns the number of rows changed by the last insert, update or delete.
+	 */
+	long changes(SQLiteDatabase db) {
+		checkDatabase(db);
+		if (mChanges == null) {
+			mChanges = db.compileStatement("SELECT changes()");
+		}
+		return mChanges.simpleQueryForLong();
+	}
+
+	void clear() {
+		for (KindStatements statements : mKinds.values()) {
+			statements.close();
+		}
+		mKinds.clear();
+		close(mChanges);
+		mChanges = null;
+	}
+
+	private static void close(SQLiteStatement statement) {
+		if (statement != null) {
+			statement.close();
+		}
+	}
+}
@@ -33,6 +33,10 @@ public final class Store {
 
     public static final String APPLICATION_NAME = "Sync Utility";
     
+	/**
+	 * @deprecated SimpleDateFormat is not thread-safe and drops microseconds; use {@link DateCodec}.
+	 */
+	@Deprecated
 	public static final SimpleDateFormat sDateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
 	
 	static {
@@ -188,11 +192,72 @@ public final class Store {
          */
         public static final String STATUS = "status"; 
 
+        /**
+         * How downloaded entities are written: "upsert" (the default when null), which decides
+         * entity by entity, or "staged", which loads each batch into a temporary table and applies
+         * it with a few set-based statements. Staged mode suits kinds too large to index in memory.
+         * <P>Type: TEXT</P>
+         */
+        public static final String INGEST_MODE = "ingest_mode"; 
+
+        /**
+         * Bytes of entity data received by the last download, before and after decompression.
+         * They are equal when the server did not compress the download.
+         * <P>Type: INT</P>
+         */
+        public static final String DOWNLOAD_WIRE_BYTES = "download_wire_bytes"; 
+        public static final String DOWNLOAD_BYTES = "download_bytes"; 
+
+        /**
+         * Bytes of changes sent by the last upload, as sent and before compression.
+         * <P>Type: INT</P>
+         */
+        public static final String UPLOAD_WIRE_BYTES = "upload_wire_bytes"; 
+        public static final String UPLOAD_BYTES = "upload_bytes"; 
+
+        /**
+         * The server's cursor for the next page of an unfinished download, or null. The next sync 
+         * resumes the download from it.
+         * <P>Type: TEXT</P>
+         */
+        public static final String CONTINUATION = "continuation"; 
+
+        /**
+         * The server time the unfinished download started at, which becomes {@link #LAST_SYNCED}
+         * once it finishes.
+         * <P>Type: INT</P>
+         */
+        public static final String CONTINUATION_SYNCED = "continuation_synced"; 
+
+        /**
+         * The server's ETag for the kind as of the last download, or null. It is sent with the next
+         * download, which the server skips if the kind has not changed since.
+         * <P>Type: TEXT</P>
+         */
+        public static final String VALIDATOR = "validator"; 
+
+        /**
+         * The server's watermark as of the last download, in microseconds since the epoch, or 0.
+         * Every entity dated up to it has been downloaded, so the next download asks only for
+         * entities dated after it.
+         * <P>Type: INT</P>
+         */
+        public static final String WATERMARK = "watermark"; 
+
+        /**
+         * The watermark the unfinished download started at, which becomes {@link #WATERMARK} once
+         * it finishes.
+         * <P>Type: INT</P>
+         */
+        public static final String CONTINUATION_WATERMARK = "continuation_watermark"; 
+
         /**
          * Columns contained in SQL directly, as opposed to in-memory.
          * <P>Type: String[]</P>
          */
-        public static final String[] SQL_COLUMNS = new String[] { _ID, PATH_QUERY, LAST_SYNCED };
+        public static final String[] SQL_COLUMNS = new String[] { _ID, PATH_QUERY, LAST_SYNCED, INGEST_MODE,
+        	DOWNLOAD_WIRE_BYTES, DOWNLOAD_BYTES, UPLOAD_WIRE_BYTES, UPLOAD_BYTES, CONTINUATION, 
+        	CONTINUATION_SYNCED, VALIDATOR, WATERMARK, CONTINUATION_WATERMARK };
 
         /**
          * Columns contained in SQL directly, as opposed to in-memory.
@@ -205,7 +270,9 @@ public final class Store {
          * <P>Type: String[]</P>
          */
         public static final String[] ALL_COLUMNS = new String[] { 
-        	_ID, PATH_QUERY, LAST_SYNCED, SYNC_ACTIVE, PROGRESS_PERCENT, STATUS 
+        	_ID, PATH_QUERY, LAST_SYNCED, SYNC_ACTIVE, PROGRESS_PERCENT, STATUS, INGEST_MODE,
+        	DOWNLOAD_WIRE_BYTES, DOWNLOAD_BYTES, UPLOAD_WIRE_BYTES, UPLOAD_BYTES, CONTINUATION, 
+        	CONTINUATION_SYNCED, VALIDATOR, WATERMARK, CONTINUATION_WATERMARK
         	};
     }
     
@@ -266,4 +333,83 @@ public final class Store {
         public static final String[] ALL_COLUMNS = new String[] { _ID, APP, MAPPED_APP, MAPPED_URL };
 
     }
+    
+    /**
+     * Meta Automatic Indexes table definition. Each row records how often a column of a synced 
+     * kind is searched, joined or sorted on, and the index created for it, if any.
+     */
+    public static final class Meta_Index implements BaseColumns {
+        // This class cannot be instantiated
+        private Meta_Index() {}
+        
+	    /**
+	     * The name of this table.
+	     */
+	    public static final String TABLE_NAME = "AutoIndex";
+        
+	    /**
+	     * The content:// style URL for this table
+	     */
+	    public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY + "/" + TABLE_NAME);
+	
+	    /**
+	     * The MIME type of {@link #CONTENT_URI} providing a directory of items.
+	     */
+	    public static final String CONTENT_TYPE = "vnd.android.cursor.dir/vnd.mantastore_meta." + TABLE_NAME;
+	
+	    /**
+	     * The default sort order for this table
+	     */
+	    public static final String DEFAULT_SORT_ORDER = "rowid ASC";
+        
+        /**
+         * The app symbolic name used in URIs.
+         * <P>Type: TEXT</P>
+         */
+        public static final String APP = "app";   
+        
+        /**
+         * The kind the column belongs to.
+         * <P>Type: TEXT</P>
+         */
+        public static final String KIND = "kind";   
+        
+        /**
+         * The column used.
+         * <P>Type: TEXT</P>
+         */
+        public static final String COLUMN_NAME = "column_name";   
+        
+        /**
+         * Number of times the column has been used, over all syncs.
+         * <P>Type: INT</P>
+         */
+        public static final String USES = "uses";   
+        
+        /**
+         * Number of syncs of the kind since the column was last used.
+         * <P>Type: INT</P>
+         */
+        public static final String IDLE_SYNCS = "idle_syncs";   
+        
+        /**
+         * Name of the index created for the column, or null if there is none.
+         * <P>Type: TEXT</P>
+         */
+        public static final String INDEX_NAME = "index_name";   
+        
+        /**
+         * Time the index was created, or 0 if there is none.
+         * <P>Type: INT</P>
+         */
+        public static final String CREATED = "created";   
+
+        /**
+         * Columns contained in SQL.
+         * <P>Type: String[]</P>
+         */
+        public static final String[] ALL_COLUMNS = new String[] { 
+        	_ID, APP, KIND, COLUMN_NAME, USES, IDLE_SYNCS, INDEX_NAME, CREATED 
+        	};
+    }
 }
@@ -15,48 +15,59 @@
  ******************************************************************************/
 package org.mantasync;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
-import java.util.Date;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
-import org.codehaus.jackson.JsonGenerationException;
-import org.codehaus.jackson.JsonParseException;
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
 import org.codehaus.jackson.JsonParser;
-import org.codehaus.jackson.JsonProcessingException;
-import org.codehaus.jackson.JsonToken;
-import org.codehaus.jackson.map.JsonMappingException;
 import org.codehaus.jackson.map.ObjectMapper;
-import org.codehaus.jackson.util.TokenBuffer;
-import org.json.JSONObject;
 import org.mantasync.Store;
 import org.mantasync.Store.Base;
+import org.mantasync.Store.Meta_Index;
 import org.mantasync.Store.Meta_Mapping;
 import org.mantasync.Store.Meta_Table;
 
 import android.content.ContentProvider;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.MatrixCursor;
 import android.database.SQLException;
-import android.database.DatabaseUtils.InsertHelper;
+import android.database.sqlite.SQLiteConstraintException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Build;
+import android.preference.PreferenceManager;
 import android.text.TextUtils;
 import android.util.Log;
-import android.util.Pair;
 
 public class StoreProvider extends ContentProvider {
 
@@ -66,6 +77,20 @@ public class StoreProvider extends ContentProvider {
     private static final String DATABASE_NAME_SUFFIX = ".db";
     private static final String META_DATABASE_NAME = "mantastore_meta.db";
     private static final int DATABASE_VERSION = 5;
+    private static final int META_DATABASE_VERSION = 11;
+    
+    // Readers are considered active for this long after their last query.
+    private static final long READER_ACTIVE_WINDOW_MS = 2000;
+    // Minimum time between progress updates while writing.
+    private static final long PROGRESS_INTERVAL_MS = 1000;
+    // Limits on the downloaded data waiting to be written, after which reading blocks.
+    private static final int MAX_BATCHES_IN_FLIGHT = 4;
+    private static final long MAX_BYTES_IN_FLIGHT = 4 * 1024 * 1024;
+    private static final long WRITER_KEEP_ALIVE_SECONDS = 30;
+    // Revision indexes larger than this are not kept between downloads.
+    private static final long MAX_RETAINED_INDEX_BYTES = 1024 * 1024;
+    // Entities uploaded per request.
+    private static final int UPLOAD_CHUNK_ENTITIES = 250;
 
     private static final UriMatcher sUriMatcher;
     
@@ -76,6 +101,8 @@ public class StoreProvider extends ContentProvider {
     private static final int ITEM_TABLE_LIST = 4;
     private static final int ITEM_MAPPING = 5;
     private static final int ITEM_MAPPING_LIST = 6;
+    private static final int ITEM_INDEX = 7;
+    private static final int ITEM_INDEX_LIST = 8;
     
     public enum Mode {
         /**
@@ -86,6 +113,30 @@ public class StoreProvider extends ContentProvider {
          * Upsert, creating new rows or updating rows as needed.
          */
         UPSERT,
+        /**
+         * Upsert each batch through a temporary staging table, letting SQLite find the rows to 
+         * delete, update and insert.
+         */
+        STAGED,
+    }
+    
+    /**
+     * Turns on write-ahead logging where the platform has it (API 11). Queries are then run on 
+     * connections of their own, against the last committed state, and never wait for a write 
+     * transaction. On older platforms the single connection stays locked, so that a query waits
+     * for the current transaction instead of running inside it. Returns true if the log is used.
+     */
+    static boolean enableWriteAheadLogging(SQLiteDatabase db) {
+    	if (Build.VERSION.SDK_INT < 11) {
+    		return false;
+    	}
+    	try {
+    		Method enable = SQLiteDatabase.class.getMethod("enableWriteAheadLogging");
+    		return (Boolean)enable.invoke(db);
+    	} catch (Exception e) {
+    		Log.w(TAG, "Could not enable write-ahead logging", e);
+    		return false;
+    	}
     }
 	
     /**
@@ -94,13 +145,13 @@ public class StoreProvider extends ContentProvider {
     private static class MetaDatabaseHelper extends SQLiteOpenHelper {
 
         MetaDatabaseHelper(Context context, StoreProvider provider) {
-            super(context, META_DATABASE_NAME, null, DATABASE_VERSION);
+            super(context, META_DATABASE_NAME, null, META_DATABASE_VERSION);
         }
 
         @Override
         public void onOpen(SQLiteDatabase db) {
         	super.onOpen(db);
-        	db.setLockingEnabled(false);
+        	enableWriteAheadLogging(db);
         }
         
         @Override
@@ -108,7 +159,17 @@ public class StoreProvider extends ContentProvider {
         	db.execSQL("CREATE TABLE '" + Meta_Table.TABLE_NAME + "' ("
         			+ Meta_Table._ID + " INTEGER PRIMARY KEY, "
                     + Meta_Table.PATH_QUERY + " TEXT UNIQUE, "
-                    + Meta_Table.LAST_SYNCED + " INTEGER DEFAULT 0 "
+                    + Meta_Table.LAST_SYNCED + " INTEGER DEFAULT 0, "
+                    + Meta_Table.INGEST_MODE + " TEXT, "
+                    + Meta_Table.DOWNLOAD_WIRE_BYTES + " INTEGER DEFAULT 0, "
+                    + Meta_Table.DOWNLOAD_BYTES + " INTEGER DEFAULT 0, "
+                    + Meta_Table.UPLOAD_WIRE_BYTES + " INTEGER DEFAULT 0, "
+                    + Meta_Table.UPLOAD_BYTES + " INTEGER DEFAULT 0, "
+                    + Meta_Table.CONTINUATION + " TEXT, "
+                    + Meta_Table.CONTINUATION_SYNCED + " INTEGER DEFAULT 0, "
+                    + Meta_Table.VALIDATOR + " TEXT, "
+                    + Meta_Table.WATERMARK + " INTEGER DEFAULT 0, "
+                    + Meta_Table.CONTINUATION_WATERMARK + " INTEGER DEFAULT 0 "
                     + ");");
         	db.execSQL("CREATE TABLE '" + Meta_Mapping.TABLE_NAME + "' ("
         			+ Meta_Mapping._ID + " INTEGER PRIMARY KEY, "
@@ -116,14 +177,65 @@ public class StoreProvider extends ContentProvider {
                     + Meta_Mapping.MAPPED_APP + " TEXT "
                     + Meta_Mapping.MAPPED_URL + " TEXT "
                     + ");");
+        	createIndexTable(db);
+        }
+        
+        private void createIndexTable(SQLiteDatabase db) {
+        	db.execSQL("CREATE TABLE '" + Meta_Index.TABLE_NAME + "' ("
+        			+ Meta_Index._ID + " INTEGER PRIMARY KEY, "
+        			+ Meta_Index.APP + " TEXT, "
+        			+ Meta_Index.KIND + " TEXT, "
+        			+ Meta_Index.COLUMN_NAME + " TEXT, "
+        			+ Meta_Index.USES + " INTEGER DEFAULT 0, "
+        			+ Meta_Index.IDLE_SYNCS + " INTEGER DEFAULT 0, "
+        			+ Meta_Index.INDEX_NAME + " TEXT, "
+        			+ Meta_Index.CREATED + " INTEGER DEFAULT 0, "
+        			+ "UNIQUE (" + Meta_Index.APP + ", " + Meta_Index.KIND + ", " + Meta_Index.COLUMN_NAME + ")"
+        			+ ");");
         }
         
         @Override
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        	if (oldVersion >= 5) {
+        		// Later versions only add columns and tables, keeping the synced tables and their state.
+        		Log.w(TAG, "Upgrading meta database from version " + oldVersion + " to " + newVersion);
+        		if (oldVersion < 6) {
+        			db.execSQL("ALTER TABLE '" + Meta_Table.TABLE_NAME + "' ADD COLUMN " 
+        					+ Meta_Table.INGEST_MODE + " TEXT");
+        		}
+        		if (oldVersion < 7) {
+        			createIndexTable(db);
+        		}
+        		if (oldVersion < 8) {
+        			for (String column : new String[] { Meta_Table.DOWNLOAD_WIRE_BYTES, Meta_Table.DOWNLOAD_BYTES,
+        					Meta_Table.UPLOAD_WIRE_BYTES, Meta_Table.UPLOAD_BYTES }) {
+        				db.execSQL("ALTER TABLE '" + Meta_Table.TABLE_NAME + "' ADD COLUMN " + column 
+        						+ " INTEGER DEFAULT 0");
+        			}
+        		}
+        		if (oldVersion < 9) {
+        			db.execSQL("ALTER TABLE '" + Meta_Table.TABLE_NAME + "' ADD COLUMN " 
+        					+ Meta_Table.CONTINUATION + " TEXT");
+        			db.execSQL("ALTER TABLE '" + Meta_Table.TABLE_NAME + "' ADD COLUMN " 
+        					+ Meta_Table.CONTINUATION_SYNCED + " INTEGER DEFAULT 0");
+        		}
+        		if (oldVersion < 10) {
+        			db.execSQL("ALTER TABLE '" + Meta_Table.TABLE_NAME + "' ADD COLUMN " 
+        					+ Meta_Table.VALIDATOR + " TEXT");
+        		}
+        		if (oldVersion < 11) {
+        			db.execSQL("ALTER TABLE '" + Meta_Table.TABLE_NAME + "' ADD COLUMN " 
+        					+ Meta_Table.WATERMARK + " INTEGER DEFAULT 0");
+        			db.execSQL("ALTER TABLE '" + Meta_Table.TABLE_NAME + "' ADD COLUMN " 
+        					+ Meta_Table.CONTINUATION_WATERMARK + " INTEGER DEFAULT 0");
+        		}
+        		return;
+        	}
             Log.w(TAG, "Upgrading database from version " + oldVersion + " to "
                     + newVersion + ", which will destroy all old data");
             db.execSQL("DROP TABLE IF EXISTS \"" + Meta_Table.TABLE_NAME + "\"");
             db.execSQL("DROP TABLE IF EXISTS \"" + Meta_Mapping.TABLE_NAME + "\"");
+            db.execSQL("DROP TABLE IF EXISTS \"" + Meta_Index.TABLE_NAME + "\"");
             onCreate(db);
         }
     }
@@ -133,11 +245,26 @@ public class StoreProvider extends ContentProvider {
      */
     private static class DatabaseHelper extends SQLiteOpenHelper {
 
-    	HashMap<String, List<String>> mTableColumnMap;
+    	// The columns of every table. Catalogs are immutable, and replaced when columns are added.
+    	final ConcurrentHashMap<String, ColumnCatalog> mCatalogs = new ConcurrentHashMap<String, ColumnCatalog>();
+    	volatile boolean mCatalogsLoaded = false;
+    	// Kinds that have an overlay table of local edits.
+    	final ConcurrentHashMap<String, Boolean> mOverlays = new ConcurrentHashMap<String, Boolean>();
+    	// Join plans by name, such as "kind.joinKind".
+    	final ConcurrentHashMap<String, JoinPlan> mJoinPlans = new ConcurrentHashMap<String, JoinPlan>();
+    	final StatementCache mStatementCache = new StatementCache();
+    	volatile long mLastReadTime = 0;
+    	volatile boolean mWriteAheadLogging = false;
+    	// All downloaded entities are written on this thread, one batch at a time.
+    	final ExecutorService mWriter;
+    	// Kept between downloads, so that its arrays need not be grown again for every kind.
+    	RevisionIndex mRevisionIndex;
+    	final IndexAdvisor mIndexAdvisor;
     	Context mContext;
     	StoreProvider mProvider;
 
-		final SimpleDateFormat mDateFormat;
+		// Dates in data columns are read in the time zone of the device, as they always have been.
+		final TimeZone mTimeZone;
 		
 		static boolean isValidAppString(String app) {
 			return !(app.contains("/") || app.contains("..") || app.contains(" "));
@@ -147,17 +274,28 @@ public class StoreProvider extends ContentProvider {
             super(context, DATABASE_NAME_PREFIX + app + DATABASE_NAME_SUFFIX, null, DATABASE_VERSION);
             mContext = context;
             mProvider = provider;
-            mDateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+            mTimeZone = TimeZone.getDefault();
+            mWriter = newWriterExecutor(app);
+            mIndexAdvisor = new IndexAdvisor(app);
+        }
+        
+        /**
+         * Returns a single-thread executor whose thread goes away when it has been idle for a while.
+         */
+        static ExecutorService newWriterExecutor(final String app) {
+        	return new ThreadPoolExecutor(0, 1, WRITER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, 
+        			new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+        		public Thread newThread(Runnable r) {
+        			return new Thread(r, "Manta writer: " + app);
+        		}
+        	});
         }
 
         @Override
         public void onOpen(SQLiteDatabase db) {
         	super.onOpen(db);
-        	db.setLockingEnabled(false);
-        	// Experimental high-performance options
-        	//Log.e(TAG, "Adding performance PRAGMAS");
-        	//db.execSQL("PRAGMA synchronous = 0;");
-        	//db.rawQuery("PRAGMA journal_mode = MEMORY;", null);
+        	mWriteAheadLogging = enableWriteAheadLogging(db);
+        	// Relaxed durability is only used while bulk loading, see beginBulkLoad.
         }
         
         @Override
@@ -165,24 +303,35 @@ public class StoreProvider extends ContentProvider {
             // TODO possibly create ID table here?
         }
         
-        public HashMap<String, List<String>> getTableColumnMap(SQLiteDatabase db) {
-        	if (mTableColumnMap == null) {
-                mTableColumnMap = new HashMap<String, List<String>>();
-        		populateTableColumnMap(db);
+        public Map<String, ColumnCatalog> getCatalogs(SQLiteDatabase db) {
+        	if (!mCatalogsLoaded) {
+        		// Loaded under the database lock, as schema changes are, rather than a lock of its own,
+        		// since a thread holding a transaction may get here.
+        		db.beginTransaction();
+        		try {
+        			if (!mCatalogsLoaded) {
+        				populateCatalogs(db);
+        				mCatalogsLoaded = true;
+        			}
+        			db.setTransactionSuccessful();
+        		} finally {
+        			db.endTransaction();
+        		}
         	}
-        	return mTableColumnMap;
+        	return mCatalogs;
         }
         
-        public void populateTableColumnMap(SQLiteDatabase db) {
+        public void populateCatalogs(SQLiteDatabase db) {
         	// Populate list of tables
         	Cursor cur = db.rawQuery("SELECT name FROM sqlite_master WHERE type='table'", null);
         	if (cur != null) {
         		cur.moveToFirst();
                 while (cur.isAfterLast() == false) {
                 	String table = cur.getString(0);
-                	if (!table.equals("android_metadata")) {
+                	if (Overlay.isOverlay(table)) {
+                		mOverlays.put(table.substring(Overlay.PREFIX.length()), Boolean.TRUE);
+                	} else if (!table.equals("android_metadata")) {
 	                    List<String> columns = new ArrayList<String>();
-	                    getTableColumnMap(db).put(table, columns);
 	                    {
 	                    	// TODO escape table to prevent SQL insertion attack
 	                    	Cursor cur2 = db.rawQuery("PRAGMA table_info( '" + table + "' )", null);
@@ -196,6 +345,7 @@ public class StoreProvider extends ContentProvider {
 	                    		cur2.close();
 	                    	}
 	                    }
+	                    mCatalogs.put(table, ColumnCatalog.of(table, columns));
                 	}
                	    cur.moveToNext();
                 }
@@ -203,141 +353,562 @@ public class StoreProvider extends ContentProvider {
         	}
         }
         
-        public List<String> getOrCreateKindTable(SQLiteDatabase db, String app, String kind) {
+        /**
+         * Returns the plan for joining kinds, in order, making it if the kinds' columns have
+         * changed since it was last made.
+         */
+        public JoinPlan getJoinPlan(SQLiteDatabase db, String app, String... kinds) {
+        	ColumnCatalog[] catalogs = new ColumnCatalog[kinds.length];
+        	for (int i = 0; i < kinds.length; ++i) {
+        		catalogs[i] = getOrCreateKindTable(db, app, kinds[i]);
+        	}
+        	String name = JoinPlan.getName(catalogs);
+        	JoinPlan plan = mJoinPlans.get(name);
+        	if (plan == null || !plan.isCurrent(catalogs)) {
+        		plan = new JoinPlan(catalogs);
+        		mJoinPlans.put(name, plan);
+        	}
+        	return plan;
+        }
+        
+        // Schema changes run in a transaction, which also keeps them from interleaving with the 
+        // writes of other threads. Catalogs are replaced once the change has been made.
+        
+        public ColumnCatalog getOrCreateKindTable(SQLiteDatabase db, String app, String kind) {
         	// TODO make use of app
-        	List<String> columns = getTableColumnMap(db).get(kind);
-        	if (columns == null) {
-        		// TODO escape table to prevent SQL insertion attack
-	            db.execSQL("CREATE TABLE '" + kind + "' ("
-	                    + Base.KEY + " TEXT PRIMARY KEY,"
-	                    + Base.REV + " TEXT,"
-	                    + Base.DATE + " INTEGER,"
-	                    + Base.DIRTY + " INTEGER DEFAULT 0,"
-	                    + Base.CHANGES + " TEXT"
-	                    + ");");
-	            columns = new ArrayList<String>();
-	            getTableColumnMap(db).put(kind, columns);
-	            Collections.addAll(columns, new String[] {Base.KEY, Base.REV, Base.DATE, Base.DIRTY, Base.CHANGES});
+        	ColumnCatalog catalog = getCatalogs(db).get(kind);
+        	if (catalog != null) {
+        		return catalog;
+        	}
+        	db.beginTransaction();
+        	try {
+        		catalog = mCatalogs.get(kind);
+        		if (catalog == null) {
+	        		// TODO escape table to prevent SQL insertion attack
+		            db.execSQL("CREATE TABLE '" + kind + "' ("
+		                    + Base.KEY + " TEXT PRIMARY KEY,"
+		                    + Base.REV + " TEXT,"
+		                    + Base.DATE + " INTEGER,"
+		                    + Base.DIRTY + " INTEGER DEFAULT 0,"
+		                    + Base.CHANGES + " TEXT"
+		                    + ");");
+		            catalog = ColumnCatalog.of(kind, 
+		            		Arrays.asList(Base.KEY, Base.REV, Base.DATE, Base.DIRTY, Base.CHANGES));
+		            mCatalogs.put(kind, catalog);
+        		}
+        		db.setTransactionSuccessful();
+        	} finally {
+        		db.endTransaction();
         	}
-        	return columns;
+        	return catalog;
         }
         
-        public void createColumn(SQLiteDatabase db, String app, String kind, String name) {
-        	List<String> columns = getOrCreateKindTable(db, app, kind);
-        	if (!name.equals("*") && !columns.contains(name)) {
-	        	// TODO protect against SQL injection attack
-        		Log.e(TAG, "Inserting new column");
-	        	db.execSQL("ALTER TABLE '" + kind + "' ADD COLUMN '" + name + "';");
-	        	columns.add(name);
+        /**
+         * Adds column name to kind if it is missing, returning the kind's catalog.
+         */
+        public ColumnCatalog createColumn(SQLiteDatabase db, String app, String kind, String name) {
+        	ColumnCatalog catalog = getOrCreateKindTable(db, app, kind);
+        	if (name.equals("*") || catalog.contains(name)) {
+        		return catalog;
+        	}
+        	db.beginTransaction();
+        	try {
+        		catalog = mCatalogs.get(kind);
+        		if (!catalog.contains(name)) {
+		        	// TODO protect against SQL injection attack
+	        		Log.e(TAG, "Inserting new column");
+		        	db.execSQL("ALTER TABLE '" + kind + "' ADD COLUMN '" + name + "';");
+		        	// Columns are only ever appended, so statements already compiled remain valid.
+		        	catalog = catalog.withColumns(Collections.singletonList(name));
+		        	mCatalogs.put(kind, catalog);
+        		}
+        		db.setTransactionSuccessful();
+        	} finally {
+        		db.endTransaction();
         	}
+        	return catalog;
         }
 
-        public String findJoinColumn(SQLiteDatabase db, String app, String kind1, String kind2) {
-        	List<String> columns1 = getOrCreateKindTable(db, app, kind1);
-        	List<String> columns2 = getOrCreateKindTable(db, app, kind2);
-        	if (columns1 == null || columns2 == null) {
+        /**
+         * Creates every missing column of kind among names, in a single transaction. This runs on the
+         * writer thread, as all other writes of downloaded data do.
+         */
+        public void createColumns(final SQLiteDatabase db, final String app, final String kind, 
+        		final List<String> names) {
+        	runOnWriter(new Callable<Void>() {
+        		public Void call() {
+        			getOrCreateKindTable(db, app, kind);
+        			List<String> added = new ArrayList<String>();
+        			db.beginTransaction();
+        			try {
+        				ColumnCatalog catalog = mCatalogs.get(kind);
+        				for (String name : names) {
+        					if (!name.equals("*") && !catalog.contains(name) && !added.contains(name)) {
+        						// TODO protect against SQL injection attack
+        						db.execSQL("ALTER TABLE '" + kind + "' ADD COLUMN '" + name + "';");
+        						added.add(name);
+        					}
+        				}
+        				if (!added.isEmpty()) {
+        					mCatalogs.put(kind, catalog.withColumns(added));
+        				}
+        				db.setTransactionSuccessful();
+        			} finally {
+        				db.endTransaction();
+        			}
+        			if (!added.isEmpty()) {
+        				Log.i(TAG, "Added " + added.size() + " columns to " + kind);
+        			}
+        			return null;
+        		}
+        	});
+        }
+        
+        /**
+         * Runs task on the writer thread, after the writes already queued there, and returns its 
+         * result. Returns null if the calling thread is interrupted while waiting.
+         */
+        <T> T runOnWriter(Callable<T> task) {
+        	Future<T> result = mWriter.submit(task);
+        	try {
+        		return result.get();
+        	} catch (InterruptedException e) {
+        		Thread.currentThread().interrupt();
         		return null;
-        	}
-        	// TODO This could be memoized for performance
-        	List<String> joinColumns = new ArrayList<String>();
-        	List<String> idColumns = new ArrayList<String>();
-        	for (int i = 0; i < columns2.size(); ++i) {
-        		String col = columns2.get(i);
-        		if (col.equals(Base.TYPE) || col.equals(Base.KEY) || col.equals(Base.DATE) || col.equals(Base.REV) || col.equals(Base.DIRTY)) {
-        			continue;
+        	} catch (ExecutionException e) {
+        		if (e.getCause() instanceof RuntimeException) {
+        			throw (RuntimeException)e.getCause();
         		}
-        		if (columns1.contains(col)) {
-        			// TODO improvement: find all columns. if there is exactly one match, continue. 
-        			// if there is exactly one match containing ID, continue. otherwise, do NOT provide 
-        			// join, require client to provide in where block.
-        			joinColumns.add(col);
-        			if (col.endsWith("id")) {
-        				idColumns.add(col);
+        		throw new RuntimeException(e.getCause());
+        	}
+        }
+        
+        /**
+         * Has the index advisor review the indexes of kind, on the writer thread once the writes 
+         * queued there are done. Does not wait for the review.
+         */
+        void reviewIndexes(final String app, final String kind) {
+        	mWriter.execute(new Runnable() {
+        		public void run() {
+        			try {
+        				SQLiteDatabase db = getWritableDatabase();
+        				mIndexAdvisor.review(db, mProvider.mMetaOpenHelper.getWritableDatabase(), 
+        						getOrCreateKindTable(db, app, kind));
+        			} catch (SQLException e) {
+        				Log.e(TAG, "Could not review indexes of " + kind, e);
         			}
         		}
+        	});
+        }
+        
+        /**
+         * Creates the overlay table of kind if it has none, moving into it any edits still kept
+         * as JSON in {@link Base#CHANGES}. Must be called in a transaction.
+         */
+        void ensureOverlay(SQLiteDatabase db, String kind) {
+        	if (mOverlays.containsKey(kind)) {
+        		return;
         	}
-        	Collections.sort(joinColumns);
-        	Collections.sort(idColumns);
-        	if (joinColumns.size() == 1) {
-        		return joinColumns.get(0);
+        	Overlay.create(db, kind);
+        	String kindQuoted = "'" + kind + "'";
+        	Cursor c = db.query(kindQuoted, new String[] { Base.KEY, Base.CHANGES }, 
+        			Base.DIRTY + " = 1 AND " + Base.CHANGES + " IS NOT NULL", null, null, null, null);
+        	int moved = 0;
+        	while (c.moveToNext()) {
+        		try {
+        			@SuppressWarnings("unchecked")
+        			Map<String, Object> changes = mProvider.mObjectMapper.readValue(c.getString(1), Map.class);
+        			Overlay.record(db, kind, c.getString(0), changes.entrySet());
+        			moved++;
+        		} catch (IOException e) {
+        			Log.e(TAG, "Could not parse existing changes for " + kind + ", " + c.getString(0), e);
+        		}
         	}
-        	if (idColumns.size() == 1) {
-        		return idColumns.get(0);
+        	c.close();
+        	if (moved > 0) {
+        		db.execSQL("UPDATE " + kindQuoted + " SET " + Base.CHANGES + " = NULL");
+        		Log.i(TAG, "Moved the edits of " + moved + " entities of " + kind + " to its overlay");
         	}
-        	if (idColumns.size() > 1) {
-        		return idColumns.get(0);
+        	mOverlays.put(kind, Boolean.TRUE);
+        }
+        
+        boolean hasOverlay(String kind) {
+        	return mOverlays.containsKey(kind);
+        }
+        
+        /**
+         * Returns true if kind has no table yet, or no rows in it.
+         */
+        boolean isKindEmpty(SQLiteDatabase db, String kind) {
+        	if (!getCatalogs(db).containsKey(kind)) {
+        		return true;
         	}
-        	if (joinColumns.size() > 1) {
-        		return joinColumns.get(0);
+        	Cursor c = db.rawQuery("SELECT 1 FROM '" + kind + "' LIMIT 1", null);
+        	try {
+        		return !c.moveToFirst();
+        	} finally {
+        		c.close();
         	}
-        	return null;
         }
         
-        @SuppressWarnings("unchecked")
-		public static Map<String, Object> getNextNewObject(Map<String, Pair<String, Integer>> presentRevs, 
-        													JsonParser jp) {
-			Map<String, Object> object = null;
-        	try {
-				while (jp.nextToken() != JsonToken.END_ARRAY) {
-					if (jp.getCurrentToken() != JsonToken.START_OBJECT) {
-						throw new JsonParseException("Array contains non-object", jp.getCurrentLocation());
-					}
-					TokenBuffer buffer = new TokenBuffer(jp.getCodec());
-					buffer.copyCurrentStructure(jp);
-					JsonParser keyJp = buffer.asParser();
-					String key = null;
-					String rev = null;
-					keyJp.nextToken();
-					while (keyJp.nextToken() != JsonToken.END_OBJECT) {
-						String name = keyJp.getCurrentName();
-						keyJp.nextToken();
-						if (Base.KEY.equals(name)) {
-							key = keyJp.getText();
-						} else if (Base.REV.equals(rev)) {
-							rev = keyJp.getText();
-						}
-					}
-					Pair<String,Integer> entry = presentRevs.get(key);
-					if (entry != null && entry.first.equals(rev)) {
-						// We can skip this entity.
-						continue;
-					}
-					
-					JsonParser objectJp = buffer.asParser();
-					object = objectJp.readValueAs(Map.class);
-					break;
-				}
-			} catch (JsonParseException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			} catch (JsonProcessingException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			} catch (IOException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
-			return object;
+        /**
+         * The indexes dropped from a kind while bulk loading it, to be rebuilt once the load is over.
+         */
+        class BulkLoad {
+        	final List<String> mIndexes = new ArrayList<String>();
         }
         
-        class InsertData {
-        	SQLiteDatabase mDB;
-        	String mKind;
-        	InsertHelper mHelper = null;
-        	InsertData(SQLiteDatabase db, String kind) {
-        		mDB = db;
+        // Bulk loads of kinds being synced at once share the relaxed settings, saved by the first
+        // load and restored by the last one to end, or by the first other download to write. Only
+        // used on the writer thread.
+        private int mBulkLoads = 0;
+        private boolean mRelaxed = false;
+        private long mSavedSynchronous;
+        private String mSavedJournalMode;
+        
+        /**
+         * Prepares the empty table of kind for a bulk load. Its secondary indexes are dropped, to be
+         * built once from all the rows, and durability is relaxed: the journal is kept in memory 
+         * and writes are not synced. A crash during the load can then leave the database damaged, 
+         * which is accepted for the first sync of a kind only. A write-ahead log is kept, as 
+         * readers depend on it, and only syncing is turned off.
+         * 
+         * These settings hold for the whole database, not only the kind. They are taken by the 
+         * first of several concurrent bulk loads and restored when the last one ends. Downloads of 
+         * other kinds restore them before their first write, as their data is not theirs to risk, 
+         * so the bulk loads still running carry on durably. Local edits made during a bulk load 
+         * share its relaxed settings, and may be lost or damaged by a crash until it ends.
+         * 
+         * PRAGMAs cannot be changed inside a transaction, so this runs on the writer thread.
+         */
+        BulkLoad beginBulkLoad(final SQLiteDatabase db, final String kind) {
+        	return runOnWriter(new Callable<BulkLoad>() {
+        		public BulkLoad call() {
+        			BulkLoad load = new BulkLoad();
+        			List<String> names = new ArrayList<String>();
+        			Cursor c = db.rawQuery("SELECT name, sql FROM sqlite_master WHERE type = 'index' "
+        					+ "AND tbl_name = ? AND sql IS NOT NULL", new String[] { kind });
+        			while (c.moveToNext()) {
+        				names.add(c.getString(0));
+        				load.mIndexes.add(c.getString(1));
+        			}
+        			c.close();
+        			for (String name : names) {
+        				db.execSQL("DROP INDEX IF EXISTS '" + name + "'");
+        			}
+        			
+        			if (mBulkLoads++ == 0) {
+        				mSavedSynchronous = DatabaseUtils.longForQuery(db, "PRAGMA synchronous", null);
+        				mSavedJournalMode = DatabaseUtils.stringForQuery(db, "PRAGMA journal_mode", null);
+        				db.execSQL("PRAGMA synchronous = OFF");
+        				if (!mWriteAheadLogging) {
+        					DatabaseUtils.stringForQuery(db, "PRAGMA journal_mode = MEMORY", null);
+        				}
+        				mRelaxed = true;
+        			}
+        			Log.i(TAG, "Bulk loading " + kind + ", deferred " + names.size() + " indexes");
+        			return load;
+        		}
+        	});
+        }
+        
+        /**
+         * Restores the settings changed by {@link #beginBulkLoad}, rebuilds the indexes of kind, 
+         * and sends a single notification for the whole load. 
+         */
+        void endBulkLoad(final SQLiteDatabase db, final String kind, final BulkLoad load, 
+        		final ChangeNotifier notifier) {
+        	runOnWriter(new Callable<Void>() {
+        		public Void call() {
+        			try {
+        				if (--mBulkLoads == 0) {
+        					restoreDurability(db);
+        				}
+        				long start = System.currentTimeMillis();
+        				for (String index : load.mIndexes) {
+        					db.execSQL(index);
+        				}
+        				if (!load.mIndexes.isEmpty()) {
+        					Log.i(TAG, "Built " + load.mIndexes.size() + " indexes of " + kind + " in " 
+        							+ (System.currentTimeMillis() - start) + " ms");
+        				}
+        			} finally {
+        				notifier.recordKindChange(kind);
+        				notifier.commit(getCatalogs(db).keySet(), mJoinPlans.values());
+        			}
+        			return null;
+        		}
+        	});
+        }
+
+        /**
+         * Restores the settings relaxed by {@link #beginBulkLoad}, if they still are. Runs on the 
+         * writer thread, outside of any transaction.
+         */
+        void restoreDurability(SQLiteDatabase db) {
+        	if (!mRelaxed) {
+        		return;
+        	}
+        	if (!mWriteAheadLogging) {
+        		DatabaseUtils.stringForQuery(db, "PRAGMA journal_mode = " + mSavedJournalMode, null);
+        	}
+        	db.execSQL("PRAGMA synchronous = " + mSavedSynchronous);
+        	mRelaxed = false;
+        }
+
+        /**
+         * Per-download state for insertFromJson: the table column of each decoder slot, a reusable 
+         * column set, and the changes to notify once the current transaction commits.
+         * 
+         * Batches of decoded rows are written by {@link #write(IngestQueue.Batch)}, on the writer 
+         * thread of the app.
+         */
+        class InsertData implements IngestQueue.Writer {
+        	final String mKind;
+        	final ChangeNotifier mNotifier;
+        	int[] mSlotColumns = new int[0];
+        	final BitSet mColumnSet = new BitSet();
+        	
+        	final SQLiteDatabase mDB;
+        	final String mApp;
+        	final Mode mMode;
+        	// Set while bulk loading, when notifications are sent once at the end instead of per commit.
+        	final boolean mBulk;
+        	final RowDecoder mDecoder;
+        	final RevisionIndex mPresentRevs;
+        	final BatchPolicy mPolicy;
+        	// The keys written and deleted by the current transaction, whose overlay is reapplied or dropped.
+        	final List<String> mWrittenKeys = new ArrayList<String>();
+        	final List<String> mDeletedKeys = new ArrayList<String>();
+        	// Updated by the writer thread, read by the decoding thread for progress.
+        	volatile int mWrites = 0;
+        	volatile double mLastRate = 0.0;
+        	int mTransactions = 0;
+        	long mLastRateTime = System.currentTimeMillis();
+        	int mLastRateWrites = 0;
+        	
+        	InsertData(SQLiteDatabase db, String app, String kind, Mode mode, boolean bulk, RowDecoder decoder,
+        			RevisionIndex presentRevs, BatchPolicy policy) {
         		mKind = kind;
-        		resetHelper();
+        		mNotifier = new ChangeNotifier(mContext.getContentResolver(), app);
+        		mDB = db;
+        		mApp = app;
+        		mMode = mode;
+        		mBulk = bulk;
+        		mDecoder = decoder;
+        		mPresentRevs = presentRevs;
+        		mPolicy = policy;
+        	}
+        	/**
+        	 * Returns the ordinal of the table column for a decoder slot, creating the column if needed.
+        	 */
+        	int getColumn(SQLiteDatabase db, String app, RowDecoder decoder, int slot) {
+        		if (slot >= mSlotColumns.length) {
+        			int[] slotColumns = new int[Math.max(slot + 1, mSlotColumns.length * 2)];
+        			Arrays.fill(slotColumns, -1);
+        			System.arraycopy(mSlotColumns, 0, slotColumns, 0, mSlotColumns.length);
+        			mSlotColumns = slotColumns;
+        		}
+        		if (mSlotColumns[slot] == -1) {
+        			String name = decoder.getName(slot);
+        			int ordinal = getOrCreateKindTable(db, app, mKind).getOrdinal(name);
+        			if (ordinal == -1) {
+        				// Ensure needed columns are present
+        				ordinal = createColumn(db, app, mKind, name).getOrdinal(name);
+        			}
+        			mSlotColumns[slot] = ordinal;
+        		}
+        		return mSlotColumns[slot];
+        	}
+        	
+        	/**
+        	 * Writes a batch of rows. A batch normally goes in a single transaction, but is split 
+        	 * when the policy asks for an earlier commit, for instance because someone started 
+        	 * reading from the database.
+        	 */
+        	public void write(IngestQueue.Batch batch) {
+        		if (!mBulk) {
+        			// Only bulk loads may write with durability relaxed.
+        			restoreDurability(mDB);
+        		}
+        		if (mMode == Mode.STAGED) {
+        			writeStaged(batch);
+        			return;
+        		}
+        		int i = 0;
+        		while (i < batch.size) {
+        			mDB.beginTransaction();
+        			
+        			int writesTxStart = mWrites;
+        			int rowsTx = 0;
+        			long bytesTx = 0;
+        			long txStart = System.currentTimeMillis();
+        			boolean readersActive = false;
+        			boolean committed = false;
+        			mWrittenKeys.clear();
+        			try {
+        				while (i < batch.size) {
+        					RowDecoder.Row row = batch.rows[i++];
+        					rowsTx++;
+        					if (row.key == null) {
+        						Log.e(TAG, "Skipping entity without a key");
+        						continue;
+        					}
+        					mWrittenKeys.add(row.key);
+        					bytesTx += row.byteSize;
+        					if (insertFromJson(mDB, mApp, mKind, mDecoder, row, mMode, mPresentRevs, this)) {
+        						mWrites++;
+        						long now = System.currentTimeMillis();
+        						long elapsed = now - mLastRateTime;
+        						if (elapsed > 2000) {
+        							mLastRate = ((double)(mWrites - mLastRateWrites) / ((double)elapsed / 1000.0));
+        							Log.i(TAG, "Write rate: " + mLastRate + " w/s");
+        							mLastRateTime = now;
+        							mLastRateWrites = mWrites;
+        						}
+        					}
+        					readersActive = hasActiveReaders();
+        					if (mPolicy.shouldCommit(rowsTx, bytesTx, System.currentTimeMillis() - txStart, readersActive)) {
+        						break;
+        					}
+        				}
+        				
+        				// Local edits stay over the downloaded values until they are uploaded.
+        				if (hasOverlay(mKind)) {
+        					Overlay.reapply(mDB, mKind, mWrittenKeys);
+        				}
+        				mDB.setTransactionSuccessful();
+        				committed = true;
+        			} finally {
+        				mDB.endTransaction();
+        				if (!committed) {
+        					mNotifier.rollback();
+        				}
+        				long txElapsed = System.currentTimeMillis() - txStart;
+        				mPolicy.recordCommit(rowsTx, bytesTx, txElapsed, readersActive);
+        				mTransactions++;
+        				Log.i(TAG, "Wrote " + (mWrites - writesTxStart) + " in last transaction (" + rowsTx + " rows, " 
+        						+ bytesTx + " bytes, " + txElapsed + " ms)");
+        			}
+        			if (!mBulk) {
+        				mNotifier.commit(getCatalogs(mDB).keySet(), mJoinPlans.values());
+        			}
+        		}
+        	}
+        	
+        	/**
+        	 * Writes a batch of rows in a single transaction, through the staging tables. Runs of rows 
+        	 * with the same columns are staged together, then applied with set-based statements.
+        	 */
+        	void writeStaged(IngestQueue.Batch batch) {
+        		mDB.beginTransaction();
+        		
+        		long bytesTx = 0;
+        		long txStart = System.currentTimeMillis();
+        		int changed = 0;
+        		boolean committed = false;
+        		mWrittenKeys.clear();
+        		mDeletedKeys.clear();
+        		try {
+        			StatementCache.ColumnSet staged = null;
+        			for (int i = 0; i < batch.size; ++i) {
+        				RowDecoder.Row row = batch.rows[i];
+        				if (row.key == null) {
+        					Log.e(TAG, "Skipping entity without a key");
+        					continue;
+        				}
+        				bytesTx += row.byteSize;
+        				(row.allNull ? mDeletedKeys : mWrittenKeys).add(row.key);
+        				mColumnSet.clear();
+        				for (int f = 0; f < row.size; ++f) {
+        					mColumnSet.set(getColumn(mDB, mApp, mDecoder, row.fields[f]));
+        				}
+        				StatementCache.ColumnSet set = mStatementCache.getColumnSet(mDB, mKind, mColumnSet, 
+        						getOrCreateKindTable(mDB, mApp, mKind));
+        				if (set != staged && staged != null) {
+        					changed += applyStaged(staged);
+        				}
+        				staged = set;
+        				SQLiteStatement insert = set.getStageInsert(mDB);
+        				bindRow(insert, set, this, mDecoder, row);
+        				insert.bindLong(set.size() + 1, row.allNull ? 1 : 0);
+        				insert.execute();
+        			}
+        			if (staged != null) {
+        				changed += applyStaged(staged);
+        			}
+        			if (hasOverlay(mKind)) {
+        				Overlay.delete(mDB, mKind, mDeletedKeys);
+        				Overlay.reapply(mDB, mKind, mWrittenKeys);
+        			}
+        			
+        			mDB.setTransactionSuccessful();
+        			committed = true;
+        		} finally {
+        			mDB.endTransaction();
+        			long txElapsed = System.currentTimeMillis() - txStart;
+        			mPolicy.recordCommit(batch.size, bytesTx, txElapsed, hasActiveReaders());
+        			mTransactions++;
+        			Log.i(TAG, "Staged " + changed + " changes in last transaction (" + batch.size + " rows, " 
+        					+ bytesTx + " bytes, " + txElapsed + " ms)");
+        		}
+        		if (committed && changed > 0) {
+        			mWrites += changed;
+        			mNotifier.recordKindChange(mKind);
+        			mNotifier.commit(getCatalogs(mDB).keySet(), mJoinPlans.values());
+        		}
         	}
-        	public void resetHelper() {
-        		if (mHelper != null) {
-        			mHelper.close();
+        	
+        	/**
+        	 * Applies the rows staged for set: tombstones are deleted, present entities with another 
+        	 * revision updated, and new entities inserted. Returns the number of rows changed.
+        	 */
+        	int applyStaged(StatementCache.ColumnSet set) {
+        		int changed = 0;
+        		set.getStageDelete(mDB).execute();
+        		changed += mStatementCache.changes(mDB);
+        		SQLiteStatement update = set.getStageUpdate(mDB);
+        		if (update != null) {
+        			update.execute();
+        			changed += mStatementCache.changes(mDB);
         		}
-        		mHelper = new InsertHelper(mDB, mKind);
+        		set.getStageInsertNew(mDB).execute();
+        		changed += mStatementCache.changes(mDB);
+        		set.getStageClear(mDB).execute();
+        		return changed;
         	}
         };
         
-        public void insertAllFromJson(SQLiteDatabase db, Uri dataUri, String app, String kind, JsonParser jp, int count, Uri metaUpdateUri, Mode mode) {
+        /**
+         * Returns true if the database has been read from recently, in which case write 
+         * transactions are kept short.
+         */
+        boolean hasActiveReaders() {
+        	return System.currentTimeMillis() - mLastReadTime < READER_ACTIVE_WINDOW_MS;
+        }
+        
+        long getWriteLatency() {
+        	SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(mContext);
+        	return Long.parseLong(settings.getString(SyncAdapter.WRITE_LATENCY_PREF, 
+        			String.valueOf(SyncAdapter.DEFAULT_WRITE_LATENCY)));
+        }
+        
+        /**
+         * Reads entities from jp and writes them to the kind's table. The entities are objects unless
+         * rows is set, in which case they are in the rows layout of {@link RowDecoder}. The calling 
+         * thread only reads and decodes; rows are handed over in batches to the app's writer thread, 
+         * which commits them while the next batch is being read. Returns once the writer is done with
+         * every batch handed over.
+         * 
+         * Bulk may only be set when the table is known to be empty: entities are then inserted 
+         * without looking for existing ones, with the table's indexes and durability relaxed as 
+         * described in {@link #beginBulkLoad}.
+         * 
+         * Returns true if every entity was read and written, or false if the data could not be 
+         * parsed or reading was interrupted, in which case the thread's interrupt is kept.
+         */
+        public boolean insertAllFromJson(SQLiteDatabase db, Uri dataUri, String app, String kind, JsonParser jp, int count, 
+        		Uri metaUpdateUri, Mode mode, boolean bulk, boolean rows) {
             String kindQuoted = "'" + kind + "'";
         	ContentValues values = new ContentValues();
         	
@@ -345,18 +916,25 @@ public class StoreProvider extends ContentProvider {
     		values.put(Meta_Table.STATUS, "Looking up existing entities");
             mProvider.update(metaUpdateUri, values, null, null);
         	
-			Map<String, Pair<String, Integer>> presentRevs = new HashMap<String, Pair<String, Integer>>();
-            List<String> cols = getTableColumnMap(db).get(kind);
-            if (cols != null && cols.contains(Base.KEY) && cols.contains(Base.REV)) {
+			RevisionIndex presentRevs = obtainRevisionIndex();
+			if (bulk) {
+				// With nothing present, every entity is inserted directly.
+				mode = Mode.UPSERT;
+			}
+            ColumnCatalog cols = getCatalogs(db).get(kind);
+            if (!bulk && mode != Mode.STAGED && cols != null && cols.contains(Base.KEY) && cols.contains(Base.REV)) {
 	    		// Find all existing entities. Eliminate entities that we do not need to consider (no change).
-            	String where = mProvider.extractWhereFromUri(cols, dataUri);
+            	String where = mProvider.extractWhereFromUri(dataUri, cols);
 				Cursor cur = db.query(kindQuoted, new String[] { Base.KEY, Base.REV, "rowid" }, where, null, null, null, null);
 				cur.moveToFirst();
 				while (!cur.isAfterLast()) {
-					presentRevs.put(cur.getString(0), new Pair<String, Integer>(cur.getString(1), cur.getInt(2)));
+					presentRevs.put(cur.getString(0), cur.getString(1), cur.getLong(2));
 					cur.moveToNext();
 				}
 	    		cur.close();
+	    		Log.i(TAG, "Indexed " + presentRevs.size() + " entities of " + kind + " in " 
+	    				+ (presentRevs.getMemoryBytes() / 1024) + " KB, " + presentRevs.getCollisions() 
+	    				+ " key hash collisions");
             }
             
     		values.clear();
@@ -364,82 +942,118 @@ public class StoreProvider extends ContentProvider {
     		values.put(Meta_Table.STATUS, "Inserting " + 0 + "/" + count);
             mProvider.update(metaUpdateUri, values, null, null);
     		
-            // TODO Use app here also.
-            InsertData data = new InsertData(db, kindQuoted);
-            
-    		// Then, start a transaction to do the actual updates.
-            int writes = 0;
-            long lastTime = System.currentTimeMillis();
-            long lastWrites = writes;
-            double lastRate = 0.0;
-            boolean entitiesLeft = true;
-            
-            JsonToken token = null;
+            RowDecoder decoder = new RowDecoder(jp, rows);
+            boolean isArray = false;
             try {
-            	token = jp.nextToken();
-			} catch (JsonParseException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
+            	isArray = decoder.start();
 			} catch (IOException e) {
 				// TODO Auto-generated catch block
 				e.printStackTrace();
 			}
-			if (token != JsonToken.START_ARRAY) {
+			if (!isArray) {
 				Log.e(TAG, "Could not parse JSON, data was not an array. Skipping parse of " + kind);
 
 				values.clear();
 				values.put(Meta_Table.PROGRESS_PERCENT, 0);
 				values.put(Meta_Table.STATUS, "Error in JSON data");
 			    mProvider.update(metaUpdateUri, values, null, null);
-			    return;
+			    releaseRevisionIndex(presentRevs);
+			    return false;
 			}
             
-            while (entitiesLeft) {
-	        	db.beginTransaction();
-                
-	        	int writesTxStart = writes;
-	        	try {
-	        		for (int j = 0; j < 50; ++j) {
-	        			Map<String, Object> object = getNextNewObject(presentRevs, jp);
-	                    if (object == null) {
-	                    	entitiesLeft = false;
-	                    	break;
-	                    }
-						if (insertFromJson(db, app, kind, object, mode, presentRevs, data)) {
-							writes++;
-							long now = System.currentTimeMillis();
-							long elapsed = now - lastTime;
-							if (elapsed > 2000) {
-								lastRate = ((double)(writes - lastWrites) / ((double)elapsed / 1000.0));
-								Log.i(TAG, "Write rate: " + lastRate + " w/s");
-								lastTime = now;
-								lastWrites = writes;
-							}
-						}
-	        		}
-
-					values.clear();
-					int progressPercent = (int)((writes / (float)count) * 100);
-					if (count == -1) {
-						progressPercent = -1;
-					}
-		    		values.put(Meta_Table.PROGRESS_PERCENT, progressPercent);
-		    		values.put(Meta_Table.STATUS, "Inserting " + writes + "/" + count + ", " + String.format("%.1f", lastRate) + " writes/sec");
-		            mProvider.update(metaUpdateUri, values, null, null);
-		            
-	        	    db.setTransactionSuccessful();
-	        	} finally {
-	        		db.endTransaction();
-	        		Log.i(TAG, "Wrote " + (writes - writesTxStart) + " in last transaction");
-	        	}
+            // Commit boundaries are chosen by the policy, based on the time the transaction has been 
+            // open, and the number of rows and bytes written in it. Batches are cut to the policy's 
+            // current target, or earlier when the download is slow, so rows never wait long.
+            long maxLatency = getWriteLatency();
+            BatchPolicy policy = new BatchPolicy(maxLatency, BatchPolicy.DEFAULT_MAX_BYTES);
+            // TODO Use app here also.
+            InsertData data = new InsertData(db, app, kind, mode, bulk, decoder, presentRevs, policy);
+            IngestQueue queue = new IngestQueue(mWriter, data, MAX_BATCHES_IN_FLIGHT, MAX_BYTES_IN_FLIGHT);
+            BulkLoad bulkLoad = bulk ? beginBulkLoad(db, kind) : null;
+            
+            long startTime = System.currentTimeMillis();
+            long lastProgressTime = startTime;
+            boolean entitiesLeft = true;
+            boolean complete = true;
+            boolean interrupted = false;
+            try {
+            	IngestQueue.Batch batch = queue.obtain();
+            	long batchStart = startTime;
+            	while (entitiesLeft && queue.getFailure() == null) {
+            		RowDecoder.Row row = batch.add();
+            		try {
+            			entitiesLeft = decoder.next(row, presentRevs);
+            		} catch (IOException e) {
+            			Log.e(TAG, "Could not parse JSON entity, stopping parse of " + kind, e);
+            			entitiesLeft = false;
+            			complete = false;
+            		}
+            		if (entitiesLeft) {
+            			batch.bytes += row.byteSize;
+            		} else {
+            			batch.removeLast();
+            		}
+            		
+            		long now = System.currentTimeMillis();
+            		if (batch.size > 0 && (!entitiesLeft || batch.size >= policy.getTargetRows() 
+            				|| batch.bytes >= BatchPolicy.DEFAULT_MAX_BYTES || now - batchStart >= maxLatency)) {
+            			queue.submit(batch);
+            			batch = queue.obtain();
+            			batchStart = now;
+            		}
+            		
+            		if (now - lastProgressTime >= PROGRESS_INTERVAL_MS) {
+            			lastProgressTime = now;
+            			updateInsertProgress(metaUpdateUri, data, count);
+            		}
+            	}
+            	queue.drain();
+            } catch (InterruptedException e) {
+            	// The batches not yet written are dropped, and the page is read again by the next sync.
+            	Log.e(TAG, "Interrupted while reading entities of " + kind);
+            	queue.stop();
+            	interrupted = true;
+            	complete = false;
+            } finally {
+            	// A batch being written still reads the revision index and relies on the bulk load, so
+            	// neither is released until the writer is done with the queue, even when interrupted.
+            	queue.drainUninterruptibly();
+            	if (bulkLoad != null) {
+            		endBulkLoad(db, kind, bulkLoad, data.mNotifier);
+            	}
             }
-    		data.mHelper.close();
+            if (interrupted) {
+            	Thread.currentThread().interrupt();
+            }
+            updateInsertProgress(metaUpdateUri, data, count);
+            
+            long totalElapsed = Math.max(1, System.currentTimeMillis() - startTime);
+            Log.i(TAG, "Write rate: " + (data.mWrites * 1000.0 / totalElapsed) + " w/s overall for " + kind + ", " + data.mWrites 
+            		+ " writes in " + data.mTransactions + " transactions, final batch target " + policy.getTargetRows());
+            
+            releaseRevisionIndex(presentRevs);
+            if (queue.getFailure() != null) {
+            	throw queue.getFailure();
+            }
+            return complete;
+        }
+        
+        private void updateInsertProgress(Uri metaUpdateUri, InsertData data, int count) {
+        	ContentValues values = new ContentValues();
+        	int writes = data.mWrites;
+        	int progressPercent = (int)((writes / (float)count) * 100);
+        	if (count == -1) {
+        		progressPercent = -1;
+        	}
+        	values.put(Meta_Table.PROGRESS_PERCENT, progressPercent);
+        	values.put(Meta_Table.STATUS, "Inserting " + writes + "/" + count + ", " + String.format("%.1f", data.mLastRate) + " writes/sec");
+        	mProvider.update(metaUpdateUri, values, null, null);
         }
 
         @SuppressWarnings("unused")
 		public void createColumnsFromJson(SQLiteDatabase db, String app, String kind, Map<String,Object> json) {
         	// Ensure needed columns are present
-        	List<String> columns = getOrCreateKindTable(db, app, kind);
+        	ColumnCatalog columns = getOrCreateKindTable(db, app, kind);
         	Iterator<String> iter = json.keySet().iterator();
         	while (iter.hasNext()) {
         		String name = iter.next();
@@ -449,151 +1063,149 @@ public class StoreProvider extends ContentProvider {
         	}
         }
         
-        public boolean insertFromJson(SQLiteDatabase db, String app, String kind, Map<String,Object> json, Mode mode, 
-        		Map<String, Pair<String, Integer>> presentRevs, InsertData data) {
-        	// TODO Handle deletion
-        	
-        	String kindQuoted = "\"" + kind + "\"";
-        	int existingRowid = -1;
+        /**
+         * Binds the values of row to statement, at the positions given by set.
+         */
+        void bindRow(SQLiteStatement statement, StatementCache.ColumnSet set, InsertData data,
+        		RowDecoder decoder, RowDecoder.Row row) {
+        	statement.clearBindings();
+        	for (int i = 0; i < row.size; ++i) {
+        		int slot = row.fields[i];
+        		int position = set.position(data.mSlotColumns[slot]);
+        		switch (row.types[slot]) {
+        		case RowDecoder.TYPE_STRING: {
+        			String value = row.strings[slot];
+        			String name = decoder.getName(slot);
+	        		if (name.equals("date") || name.endsWith("date")) {
+	        			// Coerce date into int as unixepoch
+	        			// TODO Consider just storing dates as strings, as SQLite prefers that
+	        			long micros = DateCodec.parseMicros(value);
+	        			if (micros != DateCodec.INVALID) {
+	        				long millis = DateCodec.toMillis(micros);
+	        				millis -= mTimeZone.getOffset(millis - mTimeZone.getRawOffset());
+	        				statement.bindLong(position, millis / 1000);
+	        			} else {
+	        				Log.e(TAG, "Could not parse date, using string: " + value);
+	        				statement.bindString(position, value);
+	        			}
+	        		} else {
+	        			statement.bindString(position, value);
+	        		}
+	        		break;
+        		}
+        		case RowDecoder.TYPE_LONG:
+        		case RowDecoder.TYPE_BOOLEAN:
+        			statement.bindLong(position, row.longs[slot]);
+        			break;
+        		case RowDecoder.TYPE_DOUBLE:
+        			statement.bindDouble(position, row.doubles[slot]);
+        			break;
+        		default:
+        			statement.bindNull(position);
+        			break;
+        		}
+        	}
+        }
+        
+        public boolean insertFromJson(SQLiteDatabase db, String app, String kind, RowDecoder decoder, RowDecoder.Row row, 
+        		Mode mode, RevisionIndex presentRevs, InsertData data) {
+        	long existingRowid = -1;
+        	boolean present = false;
         	{
-				String key = (String)json.get(Base.KEY);
-	        	String rev = (String)json.get(Base.REV);
-	        	Pair<String, Integer> entry = presentRevs.get(key);
-	        	if (entry != null) {
-	        		if (entry.first.equals(rev)) {
+	        	int entry = presentRevs.find(row.key);
+	        	if (entry != -1) {
+	        		if (presentRevs.hasRevision(entry, row.key, row.rev)) {
 	        			// We already have this exact key and revision. We're done.
 	        			return false;
 	        		}
-	        		// Otherwise, we at least have an existing rowid for this entry. Use it for faster access.
-	        		existingRowid = entry.second;
+	        		// Otherwise, we may at least have an existing rowid for this entry. Use it for faster access.
+	        		present = true;
+	        		existingRowid = presentRevs.getRowid(entry);
 	        	}
 			} 
         	
-        	List<String> columns = getOrCreateKindTable(db, app, kind);
-        	Iterator<String> iter = json.keySet().iterator();
-        	ContentValues values = new ContentValues();
-        	boolean allNull = true;
-        	boolean createdNewHelper = false;
-        	while (iter.hasNext()) {
-        		String name = iter.next();
-        		
-            	// Ensure needed columns are present
-        		if (!columns.contains(name)) {
-        			createColumn(db, app, kind, name);
-        		}
-        		if (!createdNewHelper) {
-	        		try { 
-	        			data.mHelper.getColumnIndex(name);
-	        		} catch (IllegalArgumentException e) {
-	        			Log.e(TAG, "Resetting insertion helper, due to new column: " + name);
-	        			data.resetHelper();
-	        			createdNewHelper = true;
-	        		}
-        		}
-        		
-        		Object value = null;
-				value = json.get(name);
-				boolean wasNull = false;
-        		if (value != null && (name.equals("date") || name.endsWith("date"))) {
-        			// Coerce date into int as unixepoch
-        			// TODO Consider just storing dates as strings, as SQLite prefers that
-        			try {
-        				Date date = mDateFormat.parse((String)value);
-        				values.put(name, date.getTime() / 1000);
-        			} catch (ParseException e) {
-        				Log.e(TAG, "Could not parse date, using string: " + (String)value);
-        				values.put(name, (String)value);
-					}
-        		}
-        		else if (value instanceof Integer) {
-        			values.put(name, (Integer)value);
-        		} else if (value instanceof Long) {
-            		values.put(name, (Long)value);
-        		} else if (value instanceof Double) {
-            		values.put(name, (Double)value);
-        		} else if (value instanceof Boolean) {
-            		values.put(name, (Boolean)value);
-        		} else if (value instanceof String) {
-            		values.put(name, (String)value);
-        		} else if (value == JSONObject.NULL) {
-        			values.putNull(name);
-        			wasNull = true;
-        		} else if (value == JsonToken.VALUE_NULL) {
-        			values.putNull(name);
-        			wasNull = true;
-        		} else if (value == null) {
-        			values.putNull(name);
-        			wasNull = true;
-        		} else {
-        			// TODO support array types, mapping types, or error gracefully
-        			Log.e(TAG, "Could not extract/use type from data, inserting generically");
-        			values.put(name, value.toString());
-        		}
-
-        		if (allNull && !wasNull && !Store.Base.BUILT_IN_COLUMNS_LIST.contains(name)) {
-        			// We have at least one non-built-in-column that has a value.
-        			allNull = false;
-        		}
-        		
+        	BitSet columnSet = data.mColumnSet;
+        	columnSet.clear();
+        	for (int i = 0; i < row.size; ++i) {
+        		columnSet.set(data.getColumn(db, app, decoder, row.fields[i]));
         	}
+        	StatementCache.ColumnSet set = mStatementCache.getColumnSet(db, kind, columnSet, 
+        			getOrCreateKindTable(db, app, kind));
+        	boolean allNull = row.allNull;
         	
         	// Insert the data
         	// TODO make use of app
         	boolean changed = false;
         	switch (mode) {
         		case REPLACE: {
-        			if (db.insertWithOnConflict(kindQuoted, null, values, SQLiteDatabase.CONFLICT_REPLACE) == -1) {
+        			SQLiteStatement replace = set.getReplace(db);
+        			bindRow(replace, set, data, decoder, row);
+        			if (replace.executeInsert() == -1) {
         				// TODO error occurred
         				Log.e(TAG, "Could not insert entity");
         			} else {
         				changed = true;
         			}
+        			break;
         		}
         		case UPSERT: {
-        			Cursor cur = null;
-        			
         			// The following code does a safer update process, where we check for the existence of 
         			// each entity before updating or inserting. However, we've already checked for all 
         			// entities at the start of this update. Thus, for speed, we will trust that. If there 
         			// is an error, we should catch it here and use the safe method instead.
-        			if (existingRowid == -1) {
+        			if (existingRowid == -1 && !present) {
         				if (allNull) {
         					// This was a requested deletion, but we've already deleted or never had the data. 
         					// We're done.
         					changed = true;
         				} else {
 	        				// No existing entity, insert without a new query.
-	        				// TODO I don't know if this code can handle introduction of a new column after 
-	        				// the helper has been created.
-	        				if (data.mHelper.insert(values) == -1) {
-	            				// TODO error occurred
+        					SQLiteStatement insert = set.getInsert(db);
+        					bindRow(insert, set, data, decoder, row);
+        					try {
+        						changed = insert.executeInsert() != -1;
+        					} catch (SQLiteConstraintException e) {
+        						// Fall through to the safer method below.
+        					}
+        					if (!changed) {
 	            				Log.e(TAG, "Could not insert entity from initial existience "
 	            						+ "query. Falling back on safer method.");	
-	            			} else {
-	            				changed = true;
 	            			}
         				}
         			}
         			
         			// If the change did not take, run the safer method.
         			if (!changed) {
+        				String revision = null;
+        				boolean revisionKnown = false;
+        				if (existingRowid != -1 && !allNull) {
+        					// The index only knows key hashes, so check that the rowid really holds this key.
+        					try {
+        						revision = lookupRevision(db, kind, existingRowid, row.key);
+        						revisionKnown = true;
+        					} catch (SQLiteDoneException e) {
+        						existingRowid = -1;
+        					}
+        				}
 	        			if (existingRowid == -1) {
-	        				cur = db.query(kindQuoted, new String[] { Base.KEY, Base.REV }, Base.KEY + " = ?", 
-	        					new String[] { (String)values.get(Base.KEY) }, null, null, null);
-	        			} else {
-	        				// Use existing rowid for faster access.
-	        				cur = db.query(kindQuoted, new String[] { Base.KEY, Base.REV }, "rowid = ?", 
-	        					new String[] { String.valueOf(existingRowid) }, null, null, null);
+	        				SQLiteStatement lookup = mStatementCache.getRowidLookup(db, kind);
+	        				lookup.bindString(1, row.key);
+	        				try {
+	        					existingRowid = lookup.simpleQueryForLong();
+	        				} catch (SQLiteDoneException e) {
+	        					// No entities.
+	        				}
 	        			}
-	        			cur.moveToFirst();
-	        	        if (cur.isAfterLast() == true) {
+	        	        if (existingRowid == -1) {
 	        	        	// No entities.
 	        	        	// If we have a deletion, we're done.
 	        	        	if (allNull) {
 	        	        		changed = true;
 	        	        	} else {
 		        	        	// Otherwise, we have data and thus we have something to insert.
-		        	        	if (db.insert(kindQuoted, null, values) == -1) {
+	        	        		SQLiteStatement insert = set.getInsert(db);
+	        	        		bindRow(insert, set, data, decoder, row);
+		        	        	if (insert.executeInsert() == -1) {
 		            				// TODO error occurred
 		            				Log.e(TAG, "Could not insert entity");
 		            			} else {
@@ -604,199 +1216,362 @@ public class StoreProvider extends ContentProvider {
 	        	        	// Already present.
 	        	        	// If this is a deletion, then we should delete now as we have real data.
 	        	        	if (allNull) {
-	        	        		if (db.delete(kindQuoted, Base.KEY + " = ?", 
-		        	        			new String[] { (String)values.get(Base.KEY) }) != 1) {
-		            				// TODO error occurred
-		            				Log.e(TAG, "Could not delete entity");
-		            			} else {
-		            				changed = true;
-		            			}
+	        	        		SQLiteStatement delete = mStatementCache.getDelete(db, kind);
+	        	        		delete.bindString(1, row.key);
+	        	        		delete.execute();
+	        	        		if (hasOverlay(kind)) {
+	        	        			Overlay.delete(db, kind, Collections.singletonList(row.key));
+	        	        		}
+	        	        		changed = true;
 	        	        	} else {
 		        	        	// We have a real update to do, so see if we have this revision.
-		        	        	String revision = cur.getString(cur.getColumnIndexOrThrow(Base.REV));
-		        	        	if (!revision.equals(values.getAsString(Base.REV))) {
-		        	        		Log.i(TAG, "Revisions do not match, updating: " + revision + ", " + values.getAsString(Base.REV));
+	        	        		if (!revisionKnown) {
+	        	        			try {
+	        	        				revision = lookupRevision(db, kind, existingRowid, row.key);
+	        	        			} catch (SQLiteDoneException e) {
+	        	        				// The row is gone; the update below will simply not match.
+	        	        			}
+	        	        		}
+		        	        	if (revision == null || !revision.equals(row.rev)) {
+		        	        		Log.i(TAG, "Revisions do not match, updating: " + revision + ", " + row.rev);
 			        	        	// Revisions differ, perform an update.
-		        	        		
-			        	        	if (db.update(kindQuoted, values,  Base.KEY + " = ?", 
-			        	        			new String[] { (String)values.get(Base.KEY) }) == -1) {
-			            				// TODO error occurred
-			            				Log.e(TAG, "Could not update entity");
-			            			} else {
-			            				changed = true;
-			            			}
+		        	        		SQLiteStatement update = set.getUpdate(db);
+		        	        		bindRow(update, set, data, decoder, row);
+		        	        		update.bindLong(set.size() + 1, existingRowid);
+		        	        		update.execute();
+		        	        		changed = true;
 		        	        	}
 	        	        	}
 	        	        }
-	        	        cur.close();
         			}
         		}
         	}
         	
-        	// TODO only send update notification if transaction actually succeeds.
         	if (changed) {
-        		// TODO precalculate all of these URIs, which will save significant time on insertion
-        		Uri changedUri = Uri.withAppendedPath(Store.Base.CONTENT_URI_BASE, app + "/" + kind + "/" + (String)values.get(Base.KEY));
-        		mContext.getContentResolver().notifyChange(changedUri, null);
-        		
-        		// Also notify all join URIs.
-        		Set<String> tables = getTableColumnMap(db).keySet();
-        		for (Iterator<String> tableIter = tables.iterator(); tableIter.hasNext() ; ) {
-        			String table = tableIter.next();
-        			if (table.equals(kind)) {
-        				continue;
-        			}
-        			changedUri = Uri.withAppendedPath(Store.Base.CONTENT_URI_BASE, app + "/" + kind + "." + table + "/" + (String)values.get(Base.KEY));
-            		mContext.getContentResolver().notifyChange(changedUri, null);
-            		changedUri = Uri.withAppendedPath(Store.Base.CONTENT_URI_BASE, app + "/" + table + "." + kind + "/");
-            		mContext.getContentResolver().notifyChange(changedUri, null);
-        		}
+        		// Sent once the transaction commits.
+        		data.mNotifier.recordChange(kind, row.key);
         	}
         	
         	return changed;
         }
         
+        /**
+         * Returns the revision of the entity with the given rowid and key. Throws 
+         * SQLiteDoneException if that row does not hold the key.
+         */
+        String lookupRevision(SQLiteDatabase db, String kind, long rowid, String key) {
+        	SQLiteStatement lookup = mStatementCache.getRevisionLookup(db, kind);
+        	lookup.bindLong(1, rowid);
+        	lookup.bindString(2, key);
+        	return lookup.simpleQueryForString();
+        }
+        
+        /**
+         * Returns an empty revision index, reusing the arrays of an earlier download if possible.
+         */
+        synchronized RevisionIndex obtainRevisionIndex() {
+        	RevisionIndex index = mRevisionIndex;
+        	mRevisionIndex = null;
+        	return index != null ? index : new RevisionIndex();
+        }
+        
+        synchronized void releaseRevisionIndex(RevisionIndex index) {
+        	if (index.getMemoryBytes() > MAX_RETAINED_INDEX_BYTES) {
+        		index.trim();
+        	} else {
+        		index.clear();
+        	}
+        	mRevisionIndex = index;
+        }
+        
         @Override
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
             Log.w(TAG, "Upgrading database from version " + oldVersion + " to "
                     + newVersion + ", which will destroy all old data");
             // TODO Check for any uncommitted dirty changes here before proceeding.
-            for (String table : getTableColumnMap(db).keySet()) {
+            for (String table : getCatalogs(db).keySet()) {
                 db.execSQL("DROP TABLE IF EXISTS \"" + table + "\"");
             }
-            mTableColumnMap.clear();
-            populateTableColumnMap(db);
+            for (String kind : mOverlays.keySet()) {
+            	db.execSQL("DROP TABLE IF EXISTS \"" + Overlay.getTable(kind) + "\"");
+            }
+            mCatalogs.clear();
+            mOverlays.clear();
+            mJoinPlans.clear();
+            mStatementCache.clear();
+            populateCatalogs(db);
             onCreate(db);
         }
     }
     
-    public void updateAllFromJson(String app, String kind, Uri dataUri, JsonParser jp, int count, Uri updateUri) {
+    /**
+     * Writes the entities read from jp, in the rows layout if rows is set. If the columns of the 
+     * download are known, they are all created before the first entity is written; otherwise 
+     * columns are added as they are found.
+     */
+    public boolean updateAllFromJson(String app, String kind, Uri dataUri, JsonParser jp, int count, Uri updateUri,
+    		List<String> columns, boolean rows) {
     	// Get the database and run the query
         SQLiteDatabase db = getOpenHelper(app).getWritableDatabase();
-    	getOpenHelper(app).insertAllFromJson(db, dataUri, app, kind, jp, count, updateUri, Mode.UPSERT);
+        // The first sync of a kind into an empty table is loaded in bulk.
+        boolean bulk = getLastSynced(updateUri) == 0 && getOpenHelper(app).isKindEmpty(db, kind);
+        if (columns != null) {
+        	getOpenHelper(app).createColumns(db, app, kind, columns);
+        }
+    	boolean complete = getOpenHelper(app).insertAllFromJson(db, dataUri, app, kind, jp, count, updateUri, 
+    			getIngestMode(updateUri), bulk, rows);
+    	// Indexes are only built once the kind is synced.
+    	getOpenHelper(app).reviewIndexes(app, kind);
+    	return complete;
     }
-
-    public class UploadData {
-    	UploadData() {
-    		count = 0;
-    		data = "";
-    		error = false;
+    
+    /**
+     * Returns the {@link Meta_Table#LAST_SYNCED} time of a synced table, or -1 if it is unknown.
+     */
+    long getLastSynced(Uri tableUri) {
+    	SQLiteDatabase db = mMetaOpenHelper.getReadableDatabase();
+    	Cursor c = db.query(Meta_Table.TABLE_NAME, new String[] { Meta_Table.LAST_SYNCED }, 
+    			Meta_Table.PATH_QUERY + " = ?", new String[] { getPathQuery(tableUri) }, null, null, null);
+    	long lastSynced = -1;
+    	if (c.moveToFirst()) {
+    		lastSynced = c.getLong(0);
     	}
-    	int count;
-    	String data;
-    	boolean error;
+    	c.close();
+    	return lastSynced;
     }
     
-    public UploadData startUploadTransactionForKind(String app, String kind, Uri uri) {
-    	UploadData response = new UploadData();
-    	response.data = "[";
-    	
-        SQLiteDatabase db = getOpenHelper(app).getWritableDatabase();
-        db.beginTransaction();
-    	
-    	Cursor c = query(uri, new String[] { Base.KEY, Base.CHANGES }, Base.DIRTY + " = 1", null, null);
-    	c.moveToFirst();
-    	int changesCol = c.getColumnIndex(Base.CHANGES);
-    	int keyCol = c.getColumnIndex(Base.KEY);
-    	boolean first = true;
-    	while (!c.isAfterLast()) {
-    		if (first) {
-    			first = false;
-    		} else {
-    			response.data += ",\n";
-    		}
-    		String dataWithKey = null;
-    		String key = c.getString(keyCol);
-    		String data = c.getString(changesCol);
-    		
-			try {
-				@SuppressWarnings("unchecked")
-				Map<String, Object> values = mObjectMapper.readValue(data, Map.class);
-	    		values.put(Base.KEY, key);
-	    		dataWithKey = mObjectMapper.writeValueAsString(values);
-			} catch (JsonParseException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			} catch (JsonMappingException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			} catch (IOException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
-    		if (dataWithKey == null) {
-    			Log.e(TAG, "Could not upload data for row: " + uri + ", " + key);
-    			response.error = true;
-    			dataWithKey = "{}";
-    		}
-    		response.data += dataWithKey;
-    		response.count++;
-    			
-    		c.moveToNext();
+    /**
+     * Returns the {@link Meta_Table#CONTINUATION} cursor of a synced table's unfinished download, or
+     * null if there is none.
+     */
+    String getContinuation(Uri tableUri) {
+    	return getMetaString(tableUri, Meta_Table.CONTINUATION);
+    }
+    
+    /**
+     * Returns the {@link Meta_Table#CONTINUATION_SYNCED} time of a synced table, or 0 if it is unknown.
+     */
+    long getContinuationSynced(Uri tableUri) {
+    	return getMetaLong(tableUri, Meta_Table.CONTINUATION_SYNCED);
+    }
+    
+    /**
+     * Returns the {@link Meta_Table#CONTINUATION_WATERMARK} of a synced table, or 0 if it is unknown.
+     */
+    long getContinuationWatermark(Uri tableUri) {
+    	return getMetaLong(tableUri, Meta_Table.CONTINUATION_WATERMARK);
+    }
+    
+    /**
+     * Returns the {@link Meta_Table#VALIDATOR} of a synced table, or null if there is none.
+     */
+    String getValidator(Uri tableUri) {
+    	return getMetaString(tableUri, Meta_Table.VALIDATOR);
+    }
+    
+    /**
+     * Returns the {@link Meta_Table#WATERMARK} of a synced table, or 0 if there is none.
+     */
+    long getWatermark(Uri tableUri) {
+    	return getMetaLong(tableUri, Meta_Table.WATERMARK);
+    }
+    
+    private String getMetaString(Uri tableUri, String column) {
+    	SQLiteDatabase db = mMetaOpenHelper.getReadableDatabase();
+    	Cursor c = db.query(Meta_Table.TABLE_NAME, new String[] { column }, 
+    			Meta_Table.PATH_QUERY + " = ?", new String[] { getPathQuery(tableUri) }, null, null, null);
+    	String value = null;
+    	if (c.moveToFirst()) {
+    		value = c.getString(0);
     	}
-    	response.data += "]\n";
     	c.close();
-    	return response;
+    	return value;
     }
     
-    public void finishUploadTransactionForKind(String app, String kind, Uri uri, UploadData upload, boolean error) {
-        SQLiteDatabase db = getOpenHelper(app).getWritableDatabase();
-        List<String> columns = getOpenHelper(app).getOrCreateKindTable(db, app, kind);
-        
-        try {
-        	if (!error && upload.count > 0) {
-        		String kindQuoted = "\"" + kind + "\"";
-        		ContentValues values = new ContentValues();
-        		values.put(Base.DIRTY, 0);
-        		values.putNull(Base.CHANGES);
-        		String where = Base.DIRTY + " = 1";
-        		String queryWhere = extractWhereFromUri(columns, uri);
-        		if (queryWhere.length() > 0) {
-        			where = "(" + queryWhere + ") AND " + where;
-        		}
-        		int count = db.update(kindQuoted, values, where, null);
-        		if (upload.count != count) {
-        			Log.e(TAG, "Error: number of entities changed before / after update: " + kind + 
-        					", before=" + upload.count + ", after=" + count);
-        			error = true;
-        		}
-        	}
-        	if (!error) {
-        		db.setTransactionSuccessful();
+    private long getMetaLong(Uri tableUri, String column) {
+    	SQLiteDatabase db = mMetaOpenHelper.getReadableDatabase();
+    	Cursor c = db.query(Meta_Table.TABLE_NAME, new String[] { column }, 
+    			Meta_Table.PATH_QUERY + " = ?", new String[] { getPathQuery(tableUri) }, null, null, null);
+    	long value = 0;
+    	if (c.moveToFirst()) {
+    		value = c.getLong(0);
+    	}
+    	c.close();
+    	return value;
+    }
+    
+    /**
+     * Returns the ingest mode chosen for a synced table, by its {@link Meta_Table#INGEST_MODE}.
+     */
+    Mode getIngestMode(Uri tableUri) {
+    	SQLiteDatabase db = mMetaOpenHelper.getReadableDatabase();
+    	Cursor c = db.query(Meta_Table.TABLE_NAME, new String[] { Meta_Table.INGEST_MODE }, 
+    			Meta_Table.PATH_QUERY + " = ?", new String[] { getPathQuery(tableUri) }, null, null, null);
+    	String mode = null;
+    	if (c.moveToFirst()) {
+    		mode = c.getString(0);
+    	}
+    	c.close();
+    	if (mode == null) {
+    		return Mode.UPSERT;
+    	}
+    	try {
+    		return Mode.valueOf(mode.toUpperCase());
+    	} catch (IllegalArgumentException e) {
+    		Log.e(TAG, "Unknown ingest mode, using upsert: " + mode);
+    		return Mode.UPSERT;
+    	}
+    }
+
+    /**
+     * A chunk of the local edits of a kind, uploaded in a single request. 
+     */
+    public class UploadData {
+    	int count = 0;
+    	// The edits, as an array in the format of the factory they were read with.
+    	byte[] data = new byte[0];
+    	boolean error = false;
+    	// Edits made after this sequence number are left for the next upload.
+    	long snapshot;
+    	// The keys of the entities in the chunk, in order.
+    	final List<String> keys = new ArrayList<String>();
+    }
+    
+    /**
+     * Returns the first chunk of the local edits of the entities of uri. The edits made so far are
+     * uploaded chunk by chunk, without holding a transaction: each chunk is read, then cleared by 
+     * {@link #finishUploadChunk} once the server has taken it. The chunks are written with
+     * factory, in JSON or Smile.
+     */
+    public UploadData startUploadForKind(String app, final String kind, Uri uri, JsonFactory factory) {
+    	final DatabaseHelper helper = getOpenHelper(app);
+        final SQLiteDatabase db = helper.getWritableDatabase();
+        Long snapshot = helper.runOnWriter(new Callable<Long>() {
+        	public Long call() {
+                db.beginTransaction();
+                try {
+                	helper.ensureOverlay(db, kind);
+                	long snapshot = Overlay.getSnapshot(db, kind);
+                	db.setTransactionSuccessful();
+                	return snapshot;
+                } finally {
+                	db.endTransaction();
+                }
         	}
-        } finally {
-        	db.endTransaction();
+        });
+        if (snapshot == null) {
+        	// Interrupted.
+        	UploadData chunk = new UploadData();
+        	chunk.error = true;
+        	return chunk;
         }
+        return readUploadChunk(helper, db, app, kind, uri, factory, snapshot, null);
+    }
+    
+    /**
+     * Returns the chunk of edits following previous, which is empty once all have been read.
+     */
+    public UploadData nextUploadChunk(String app, String kind, Uri uri, JsonFactory factory, UploadData previous) {
+    	DatabaseHelper helper = getOpenHelper(app);
+    	if (previous.keys.isEmpty()) {
+    		UploadData chunk = new UploadData();
+    		chunk.snapshot = previous.snapshot;
+    		return chunk;
+    	}
+    	return readUploadChunk(helper, helper.getWritableDatabase(), app, kind, uri, factory, previous.snapshot, 
+    			previous.keys.get(previous.keys.size() - 1));
+    }
+    
+    private UploadData readUploadChunk(DatabaseHelper helper, SQLiteDatabase db, String app, String kind, Uri uri, 
+    		JsonFactory factory, long snapshot, String afterKey) {
+    	UploadData chunk = new UploadData();
+    	chunk.snapshot = snapshot;
+    	helper.mIndexAdvisor.recordUse(kind, Base.DIRTY);
+    	ByteArrayOutputStream data = new ByteArrayOutputStream();
+    	try {
+    		JsonGenerator out = factory.createJsonGenerator(data, JsonEncoding.UTF8);
+    		Overlay.write(db, kind, getDirtyWhere(helper, db, app, kind, uri), snapshot, afterKey, 
+    				UPLOAD_CHUNK_ENTITIES, out, chunk.keys);
+    		out.close();
+    	} catch (IOException e) {
+    		Log.e(TAG, "Could not write upload data for " + uri, e);
+    		chunk.error = true;
+    	}
+    	chunk.count = chunk.keys.size();
+    	chunk.data = data.toByteArray();
+    	return chunk;
+    }
+    
+    /**
+     * Returns the where clause matching the dirty entities of kind within uri.
+     */
+    private String getDirtyWhere(DatabaseHelper helper, SQLiteDatabase db, String app, String kind, Uri uri) {
+    	String where = Base.DIRTY + " = 1";
+    	String queryWhere = extractWhereFromUri(uri, helper.getOrCreateKindTable(db, app, kind));
+    	if (queryWhere.length() > 0) {
+    		where = "(" + queryWhere + ") AND " + where;
+    	}
+    	return where;
+    }
+    
+    /**
+     * Clears the uploaded edits of chunk, in a short transaction of its own. Entities edited again
+     * since the chunk was read stay dirty.
+     */
+    public void finishUploadChunk(String app, final String kind, final UploadData chunk) {
+    	DatabaseHelper helper = getOpenHelper(app);
+        final SQLiteDatabase db = helper.getWritableDatabase();
+        helper.runOnWriter(new Callable<Void>() {
+        	public Void call() {
+                db.beginTransaction();
+                try {
+                	Overlay.clear(db, kind, chunk.keys, chunk.snapshot);
+                	db.setTransactionSuccessful();
+                } finally {
+                	db.endTransaction();
+                }
+                return null;
+        	}
+        });
     }
     
     private MetaDatabaseHelper mMetaOpenHelper;
-    private Map<String, DatabaseHelper> mOpenHelperMap;
+    private ConcurrentHashMap<String, DatabaseHelper> mOpenHelperMap;
 
 	private ObjectMapper mObjectMapper;
     
+	// Set by the sync threads of each kind, and read by queries of the meta table.
 	class Progress {
-		boolean syncActive = false;
-		int progressPercent = 0;
-		String status = "";
+		volatile boolean syncActive = false;
+		volatile int progressPercent = 0;
+		volatile String status = "";
 	}
-	Map<String, Progress> mActiveSyncMap;
+	ConcurrentHashMap<String, Progress> mActiveSyncMap;
 	
 	Progress getActiveSyncProgress(String key) {
-		if (mActiveSyncMap.get(key) == null) {
-			mActiveSyncMap.put(key, new Progress());
+		Progress progress = mActiveSyncMap.get(key);
+		if (progress == null) {
+			mActiveSyncMap.putIfAbsent(key, new Progress());
+			progress = mActiveSyncMap.get(key);
 		}
-		return mActiveSyncMap.get(key);
+		return progress;
 	}
     
 	DatabaseHelper getOpenHelper(String app) {
 		DatabaseHelper helper = mOpenHelperMap.get(app);
 		if (helper == null) {
-			Log.i(TAG, "Creating database helper for : " + app);
-			if (!DatabaseHelper.isValidAppString(app)) {
-				throw new IllegalArgumentException("Invalid app name : " + app);
+			// Several kinds of an app may be synced at once, and must share one helper and writer.
+			synchronized (mOpenHelperMap) {
+				helper = mOpenHelperMap.get(app);
+				if (helper == null) {
+					Log.i(TAG, "Creating database helper for : " + app);
+					if (!DatabaseHelper.isValidAppString(app)) {
+						throw new IllegalArgumentException("Invalid app name : " + app);
+					}
+					helper = new DatabaseHelper(getContext(), this, app);
+					mOpenHelperMap.put(app, helper);
+				}
 			}
-			helper = new DatabaseHelper(getContext(), this, app);
-			mOpenHelperMap.put(app, helper);
 		}
 		return helper;
 	}
@@ -804,8 +1579,8 @@ public class StoreProvider extends ContentProvider {
 	@Override
 	public boolean onCreate() {
         mMetaOpenHelper = new MetaDatabaseHelper(getContext(), this);
-        mOpenHelperMap = new HashMap<String, DatabaseHelper>();
-        mActiveSyncMap = new HashMap<String,Progress>();
+        mOpenHelperMap = new ConcurrentHashMap<String, DatabaseHelper>();
+        mActiveSyncMap = new ConcurrentHashMap<String,Progress>();
         mObjectMapper = new ObjectMapper();
         return true;
 	}
@@ -832,6 +1607,25 @@ public class StoreProvider extends ContentProvider {
 		return newCursor;
 	}
 	
+	/**
+	 * Queries the columns tracked by the index advisor, of every app or of the app in the URI.
+	 */
+	public Cursor metaIndexQuery(int type, Uri uri, String[] projection, String selection,
+			String[] selectionArgs, String sortOrder) {
+		SQLiteDatabase db = mMetaOpenHelper.getReadableDatabase();
+        SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
+        qb.setTables(Meta_Index.TABLE_NAME);
+        if (type == ITEM_INDEX) {
+        	qb.appendWhere(Meta_Index.APP + " = ");
+        	qb.appendWhereEscapeString(uri.getPathSegments().get(1));
+        }
+        
+        if (sortOrder == null || sortOrder.length() == 0) {
+        	sortOrder = Meta_Index.DEFAULT_SORT_ORDER;
+        }
+		return qb.query(db, projection, selection, selectionArgs, null, null, sortOrder);
+	}
+	
 	public Cursor metaMappingQuery(int type, Uri uri, String[] projection, String selection,
 			String[] selectionArgs, String sortOrder) {
 		SQLiteDatabase db = mMetaOpenHelper.getReadableDatabase();
@@ -860,7 +1654,9 @@ public class StoreProvider extends ContentProvider {
 			// TODO increase column selection safety / hygiene here
 			Progress p = getActiveSyncProgress(old.getString(1));
 			String values[] = { old.getString(0), old.getString(1), old.getString(2), 
-					p.syncActive ? "1" : "0", String.valueOf(p.progressPercent), p.status };
+					p.syncActive ? "1" : "0", String.valueOf(p.progressPercent), p.status, old.getString(3),
+					old.getString(4), old.getString(5), old.getString(6), old.getString(7), old.getString(8),
+					old.getString(9), old.getString(10), old.getString(11), old.getString(12) };
 			newCursor.addRow(values);
 			old.moveToNext();
 		}
@@ -868,13 +1664,17 @@ public class StoreProvider extends ContentProvider {
 		return newCursor;
 	}
 	
-	public String extractWhereFromUri(List<String> columns, Uri uri) {
+	/**
+	 * Returns a where clause matching the query parameters of uri, which must be columns of one of 
+	 * the given tables.
+	 */
+	String extractWhereFromUri(Uri uri, ColumnCatalog... catalogs) {
 		String where = "";
 		if (uri.getEncodedQuery() != null && uri.getEncodedQuery().length() > 0) {
 			Map<String, String> query = Util.getQueryComponents(uri);
 			for (Entry<String, String> s : query.entrySet()) {
 				String whereSegment;
-				if (columns.contains(s.getKey())) {
+				if (ColumnCatalog.contains(catalogs, s.getKey())) {
 					whereSegment = s.getKey() + "= \"" + s.getValue() + "\"";
 				} else {
 					whereSegment = "0";
@@ -888,8 +1688,8 @@ public class StoreProvider extends ContentProvider {
 		return where;
 	}
 	
-	public void extractWhereFromUri(SQLiteQueryBuilder qb, List<String> columns, Uri uri) {
-		String where = extractWhereFromUri(columns, uri);
+	void extractWhereFromUri(SQLiteQueryBuilder qb, Uri uri, ColumnCatalog... catalogs) {
+		String where = extractWhereFromUri(uri, catalogs);
 		if (where.length() > 0) {
 			qb.appendWhere(where);
 		}
@@ -905,6 +1705,9 @@ public class StoreProvider extends ContentProvider {
 		if (uriType == ITEM_MAPPING || uriType == ITEM_MAPPING_LIST) {
 			return metaMappingQuery(uriType, uri, projection, selection, selectionArgs, sortOrder);
 		}
+		if (uriType == ITEM_INDEX || uriType == ITEM_INDEX_LIST) {
+			return metaIndexQuery(uriType, uri, projection, selection, selectionArgs, sortOrder);
+		}
 		
 		List<String> path = uri.getPathSegments();
 		// TODO validate path
@@ -915,68 +1718,52 @@ public class StoreProvider extends ContentProvider {
 		String app = path.get(0);
 		String kind = path.get(1);
 		String key = null;
-		String joinKind = null;
+		String[] kinds = null;
 		if (path.size() >= 3) {
 			key = path.get(2);
 		}
 		if (path.size() >= 4) {
-			joinKind = path.get(3);
+			kinds = new String[] { kind, path.get(3) };
 		}
 		if (kind.contains(".")) {
+			// A join of two or more kinds, such as Group.Client.Loan
 			String kindParts[] = kind.split("\\.");
-			if (kindParts.length == 2) {
+			if (kindParts.length >= 2) {
 				kind = kindParts[0];
-				joinKind = kindParts[1];
+				kinds = kindParts;
 			}
 			
 		}
 		String quotedKind = "'" + kind + "'";
 		
+        getOpenHelper(app).mLastReadTime = System.currentTimeMillis();
         SQLiteDatabase writableDb = getOpenHelper(app).getWritableDatabase();
         SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
-        // Check tables for existence
-    	List<String> allColumns = new ArrayList<String>();
-        if (writableDb != null) {
-        	List<String> columns = getOpenHelper(app).getOrCreateKindTable(writableDb, app, kind);
-        	allColumns.addAll(columns);
-        	List<String> joinColumns = null;
-        	if (joinKind != null) {
-            	joinColumns = getOpenHelper(app).getOrCreateKindTable(writableDb, app, joinKind);
-            	allColumns.addAll(joinColumns);
-        	}
-        	if (projection != null) {
-		        for (int i = 0; i < projection.length; ++i) {
-		        	if (!projection[i].contains(".") && !projection[i].contains("(") &&
-		        		(!columns.contains(projection[i]) && (joinColumns == null || !joinColumns.contains(projection[i])))) {
-		        		projection[i] = "null as " + projection[i];
-		        	}
-		        }
-	        }
+        // Check tables for existence, and plan any join
+        ColumnCatalog[] allColumns;
+        JoinPlan plan = null;
+        if (kinds != null) {
+        	plan = getOpenHelper(app).getJoinPlan(writableDb, app, kinds);
+        	allColumns = plan.getCatalogs();
+        	projection = plan.getProjection(projection);
+        } else {
+        	allColumns = new ColumnCatalog[] { 
+        			getOpenHelper(app).getOrCreateKindTable(writableDb, app, kind) };
+        	projection = JoinPlan.rewriteProjection(projection, quotedKind, allColumns);
         }
         
         // TODO use app also
         qb.setTables(quotedKind);
 
         // Extract any select arguments from the query param.
-		extractWhereFromUri(qb, allColumns, uri);
+		extractWhereFromUri(qb, uri, allColumns);
         
         switch (sUriMatcher.match(uri)) {
         case ITEM_LIST:
-        	if (joinKind != null) {
-        		String joinColumn = getOpenHelper(app).findJoinColumn(writableDb, app, kind, joinKind);
-        		if (joinColumn == null) {
-        			// TODO This code makes things more strict, but it causes initial opening to fail.
-        			// if (selection == null) {
-        			//	throw new IllegalArgumentException("Unknown Join URI " + uri);
-        			// } else 
-        			{
-        				// Assume the selection will make the join reasonable.
-        				qb.setTables("'" + kind + "', '" + joinKind + "'");
-        			}
-        		} else {
-        			qb.setTables("'" + kind + "' join '" + joinKind 
-        					+ "' on ('" + kind + "'." + joinColumn + " = '" + joinKind + "'." + joinColumn + ")");
-        		}
+        	if (plan != null) {
+        		// TODO When the kinds share no join column, a plain product is queried, which makes 
+        		// things less strict, but refusing it causes initial opening to fail.
+        		qb.setTables(plan.getTables());
         	} 
         	break;
         	
@@ -995,25 +1782,18 @@ public class StoreProvider extends ContentProvider {
         } else {
             orderBy = sortOrder;
         }
-        if (joinKind != null && orderBy.equals(Base.DEFAULT_SORT_ORDER)) {
+        if (plan != null && orderBy.equals(Base.DEFAULT_SORT_ORDER)) {
         	orderBy = quotedKind + "." + orderBy;
         }
         
+        IndexAdvisor advisor = getOpenHelper(app).mIndexAdvisor;
+        advisor.recordQuery(uri, selection, sortOrder, allColumns);
+        if (plan != null) {
+        	advisor.recordJoin(plan);
+        }
+        
         // Get the database and run the query
         SQLiteDatabase db = getOpenHelper(app).getReadableDatabase();
-        if (projection == null) {
-        	projection = new String[] { "*", quotedKind + ".rowid as _id"};
-        } else {
-        	String[] newProjection = new String[projection.length + 1];
-        	for (int i = 0; i < projection.length; ++i) {
-        		newProjection[i] = projection[i];
-        		if (projection[i].equals(Base.KEY)) {
-        			newProjection[i] = quotedKind + "." + Base.KEY + " as " + Base.KEY;
-        		}
-        	}
-        	newProjection[projection.length] = quotedKind + ".rowid as _id";
-        	projection = newProjection;
-        }
         // Poor design of this abstraction makes group by impossible. As a polite hack, split it out of the selection.
         String groupBy = null;
         if (selection != null) {
@@ -1066,6 +1846,12 @@ public class StoreProvider extends ContentProvider {
 				return Store.Meta_Mapping.CONTENT_ITEM_TYPE;
 			}
 			
+			case ITEM_INDEX_LIST:
+			case ITEM_INDEX:
+			{
+				return Store.Meta_Index.CONTENT_TYPE;
+			}
+			
 			default:
 				throw new IllegalArgumentException("Unknown URI " + uri);
 		}
@@ -1229,107 +2015,31 @@ public class StoreProvider extends ContentProvider {
 	        	getOpenHelper(app).createColumn(db, app, kind, iter.next().getKey());
 	        }
         }
-        List<String> columns = getOpenHelper(app).getOrCreateKindTable(db, app, kind);
+        ColumnCatalog columns = getOpenHelper(app).getOrCreateKindTable(db, app, kind);
         
-        // TODO Plan for update:
-        // Produce JSON version of values
-        // Start TX
-        // Query all affected entities
-        // If any are __dirty__ and have __changes__, merge changes
-        // Apply each change (to individual entities, and/or to the whole list)
-        // For the whole list, assume we apply to all assuming not-dirty, and then 
-        //              fix the dirty ones (this does not scale)
-        // Or, for changing multiple entities, simply do one at a time:
-        // for entities with where AND __dirty__ == true : apply merge
-        // for entities with where and __dirty__ == false: just add data
-
-        String whereSuffix = " ";
+        // Edits are recorded in the kind's overlay, to be uploaded, and applied to its table for 
+        // readers. Both take a fixed number of statements, however many entities are edited.
+        String selection = "(1)";
         if (uriType == ITEM_KEY) {
-        	whereSuffix += "AND (" + Base.KEY + " = \"" + key + "\") ";
+        	selection += " AND (" + Base.KEY + " = " + DatabaseUtils.sqlEscapeString(key) + ")";
         }
-        whereSuffix += (!TextUtils.isEmpty(where) ? "AND (" + where + ") " : "");
-        
-        String queryWhere = extractWhereFromUri(columns, uri);
-        whereSuffix += (!TextUtils.isEmpty(queryWhere) ? "AND (" + queryWhere + ") " : "");
-        
-        String changed = null;
-        HashMap<String, Object> changes = new HashMap<String, Object>();
-        for (Entry<String, Object> e : values.valueSet()) {
-        	changes.put(e.getKey(), e.getValue());
+        if (!TextUtils.isEmpty(where)) {
+        	selection += " AND (" + where + ")";
         }
         
-        try {
-			changed = mObjectMapper.writeValueAsString(changes);
-		} catch (JsonGenerationException e1) {
-			// TODO Auto-generated catch block
-			e1.printStackTrace();
-		} catch (JsonMappingException e1) {
-			// TODO Auto-generated catch block
-			e1.printStackTrace();
-		} catch (IOException e1) {
-			// TODO Auto-generated catch block
-			e1.printStackTrace();
-		}
-		if (changed == null) {
-            throw new IllegalArgumentException("Could not serialize data for update: " + values.toString());
-		}
-		
-        values.put(Base.DIRTY, 1);
+        String queryWhere = extractWhereFromUri(uri, columns);
+        getOpenHelper(app).mIndexAdvisor.recordQuery(uri, where, null, columns);
+        if (!TextUtils.isEmpty(queryWhere)) {
+        	selection += " AND (" + queryWhere + ")";
+        }
         
         int count = 0;
         db.beginTransaction();
         try {
-        
-        	Cursor c = db.query(kindQuoted, new String[] { Base.KEY, Base.CHANGES }, 
-        			"(" + Base.DIRTY + " = 1)" + whereSuffix, whereArgs, null, null, null);
-        	
-        	c.moveToFirst();
-        	while (!c.isAfterLast()) {
-        		String rowKey = c.getString(0);
-        		String rowChanged = c.getString(1);
-        		
-        		Map<String, Object> rowChanges = null;
-        		try {
-					rowChanges = mObjectMapper.readValue(rowChanged, Map.class);
-				} catch (JsonParseException e1) {
-					// TODO Auto-generated catch block
-					e1.printStackTrace();
-				} catch (JsonMappingException e1) {
-					// TODO Auto-generated catch block
-					e1.printStackTrace();
-				} catch (IOException e1) {
-					// TODO Auto-generated catch block
-					e1.printStackTrace();
-				}
-				if (rowChanges == null) {
-		            throw new IllegalArgumentException("Could not parse existing changes for row " + uri + ", " + 
-		            		rowKey + ": " + rowChanged);
-				}
-				rowChanges.putAll(changes);
-				try {
-					rowChanged = mObjectMapper.writeValueAsString(rowChanges);
-				} catch (JsonGenerationException e1) {
-					// TODO Auto-generated catch block
-					e1.printStackTrace();
-				} catch (JsonMappingException e1) {
-					// TODO Auto-generated catch block
-					e1.printStackTrace();
-				} catch (IOException e1) {
-					// TODO Auto-generated catch block
-					e1.printStackTrace();
-				}
-				if (changed == null) {
-		            throw new IllegalArgumentException("Could not serialize data for update: " + rowChanges.toString());
-				}
-				values.put(Base.CHANGES, rowChanged);
-
-	        	count += db.update(kindQuoted, values, "(" + Base.KEY + " = \"" + rowKey + "\")" + whereSuffix, whereArgs);
-	        	c.moveToNext();
-        	}
-        	c.close();
-        	
-        	values.put(Base.CHANGES, changed);
-        	count += db.update(kindQuoted, values, "(" + Base.DIRTY + " = 0)" + whereSuffix, whereArgs);
+        	getOpenHelper(app).ensureOverlay(db, kind);
+        	Overlay.record(db, kind, selection, whereArgs, values);
+        	values.put(Base.DIRTY, 1);
+        	count = db.update(kindQuoted, values, selection, whereArgs);
         	
         	db.setTransactionSuccessful();
         } finally {
@@ -1348,6 +2058,8 @@ public class StoreProvider extends ContentProvider {
         sUriMatcher.addURI(Store.AUTHORITY, Meta_Table.TABLE_NAME + "/", ITEM_TABLE_LIST);
         sUriMatcher.addURI(Store.AUTHORITY, Meta_Mapping.TABLE_NAME + "/*", ITEM_MAPPING);
         sUriMatcher.addURI(Store.AUTHORITY, Meta_Mapping.TABLE_NAME + "/", ITEM_MAPPING_LIST);
+        sUriMatcher.addURI(Store.AUTHORITY, Meta_Index.TABLE_NAME + "/*", ITEM_INDEX);
+        sUriMatcher.addURI(Store.AUTHORITY, Meta_Index.TABLE_NAME + "/", ITEM_INDEX_LIST);
         sUriMatcher.addURI(Store.AUTHORITY, "*/*", ITEM_LIST);
         sUriMatcher.addURI(Store.AUTHORITY, "*/*/*", ITEM_KEY);
 	}
@@ -69,8 +69,6 @@ public class SyncActivity extends ListActivity {
 	protected void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
 		
-		Util.WarmUpDateParsing();
-		
 		if (getIntent().getData() == null) {
 			// We were launched without context. Set the URI to the entire sync store.
 			getIntent().setData(Store.Meta_Table.CONTENT_URI);
@@ -16,10 +16,13 @@
 package org.mantasync;
 
 import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.UnsupportedEncodingException;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
@@ -27,17 +30,17 @@ import java.util.concurrent.CountDownLatch;
 
 import org.apache.http.Header;
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
-import org.apache.http.entity.StringEntity;
+import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.impl.cookie.DateParseException;
 import org.apache.http.impl.cookie.DateUtils;
-import org.apache.http.params.HttpConnectionParams;
-import org.apache.http.params.HttpParams;
 import org.codehaus.jackson.JsonFactory;
 import org.codehaus.jackson.JsonParseException;
 import org.codehaus.jackson.JsonParser;
 import org.codehaus.jackson.map.ObjectMapper;
+import org.mantasync.HttpCompression.CountingInputStream;
 import org.mantasync.Store.Base;
 import org.mantasync.Store.Meta_Mapping;
 import org.mantasync.Store.Meta_Table;
@@ -72,15 +75,31 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
     static final String AUTH_TOKEN_PREF = "auth_token";
     static final String SYNC_AUTOMATICALLY_PREF = "sync_automatically";
     static final String SYNC_FREQUENCY_PREF = "sync_frequency";
+    static final String WRITE_LATENCY_PREF = "write_latency";
+    static final String SYNC_PARALLELISM_PREF = "sync_parallelism";
     
     private static final String DEFAULT_AUTH_TOKEN = "";
     public static final boolean DEFAULT_SYNC_AUTOMATICALLY = false;
     public static final int DEFAULT_SYNC_FREQUENCY = 24 * 60 * 60; // 1 day
+    public static final long DEFAULT_WRITE_LATENCY = 500; // milliseconds
+    public static final int DEFAULT_SYNC_PARALLELISM = 4; // kinds per server
 
     private static final String AUTH_TOKEN_HEADER = "Auth-Token";
     private static final String NUM_RESULTS_HEADER = "X-Num-Results";
+    private static final String COLUMNS_HEADER = "X-Columns";
     private static final String ACCOUNT_NAME_HEADER = "X-Account-Name";
+    private static final String CONTINUATION_HEADER = "X-Continuation";
+    private static final String ETAG_HEADER = "ETag";
+    private static final String IF_NONE_MATCH_HEADER = "If-None-Match";
+    private static final String WATERMARK_HEADER = "X-Watermark";
+    private static final String DATE_AFTER_PARAM = "date_after";
+    private static final String PAGE_SIZE_PARAM = "limit";
+    private static final String CURSOR_PARAM = "cursor";
     
+    // Entities downloaded per request. Each page is written, and its cursor saved, before the next.
+    private static final int PAGE_SIZE = 1000;
+    
+    // Used with servers that send no watermark, to allow for entities committed late or clock skew.
     private static final long DATE_WINDOW_OVERLAP_SECONDS = 60 * 60; // 1 hour
     
 	private final Context mContext;
@@ -137,6 +156,16 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
             editor.putString(SYNC_FREQUENCY_PREF, String.valueOf(DEFAULT_SYNC_FREQUENCY));
             editor.commit();
         }
+        if (!settings.contains(WRITE_LATENCY_PREF)) {
+            SharedPreferences.Editor editor = settings.edit();
+            editor.putString(WRITE_LATENCY_PREF, String.valueOf(DEFAULT_WRITE_LATENCY));
+            editor.commit();
+        }
+        if (!settings.contains(SYNC_PARALLELISM_PREF)) {
+            SharedPreferences.Editor editor = settings.edit();
+            editor.putString(SYNC_PARALLELISM_PREF, String.valueOf(DEFAULT_SYNC_PARALLELISM));
+            editor.commit();
+        }
         
     }
 	
@@ -228,11 +257,12 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
 		onStartSync(provider, url, uploadOnly, account.name);
     }
         
-	private void onStartSync(ContentProviderClient provider, String url, boolean uploadOnly, String accountName) {
+	private void onStartSync(ContentProviderClient provider, final String url, final boolean uploadOnly, 
+			final String accountName) {
 
 		//Debug.startMethodTracing("mantasync-" + now.getTime());
 		
-		StoreProvider localProvider = (StoreProvider)provider.getLocalContentProvider();
+		final StoreProvider localProvider = (StoreProvider)provider.getLocalContentProvider();
 		
         // TODO Is there a way to not sync everything, and instead only sync the client view? 
         // Perhaps using the extras Bundle.
@@ -250,15 +280,37 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
         	c.moveToNext();
         }
         
-        // Then start the sync.
+        // Then start the sync. Kinds are synced in parallel, a few at a time against each server.
+        SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(mContext);
+        SyncScheduler scheduler = new SyncScheduler(Integer.parseInt(settings.getString(SYNC_PARALLELISM_PREF, 
+        		String.valueOf(DEFAULT_SYNC_PARALLELISM))));
         c.moveToFirst();
         while (!c.isAfterLast()) {
-        	Log.e(TAG, "Syncing kind: " + c.getString(c.getColumnIndex(Meta_Table.PATH_QUERY)));
-        	syncOneKind(localProvider, url, c.getString(c.getColumnIndex(Meta_Table.PATH_QUERY)),
-        			c.getLong(c.getColumnIndex(Meta_Table.LAST_SYNCED)), uploadOnly, accountName);
+        	final String pathQuery = c.getString(c.getColumnIndex(Meta_Table.PATH_QUERY));
+        	final long lastSynced = c.getLong(c.getColumnIndex(Meta_Table.LAST_SYNCED));
+        	String server = url;
+        	List<String> path = Uri.parse(Meta_Table.CONTENT_URI.toString() + pathQuery).getPathSegments();
+        	if (path.size() >= 2) {
+        		server = getServerMapping(localProvider, path.get(path.size() - 2), url).url;
+        	}
+        	scheduler.submit(server, new Runnable() {
+        		public void run() {
+                	Log.e(TAG, "Syncing kind: " + pathQuery);
+                	syncOneKind(localProvider, url, pathQuery, lastSynced, uploadOnly, accountName);
+        		}
+        	});
         	c.moveToNext();
         }
         c.close();
+        try {
+        	scheduler.awaitAll();
+        } catch (InterruptedException e) {
+        	Log.e(TAG, "Sync interrupted");
+        	Thread.currentThread().interrupt();
+        	return;
+        }
+        // Connections are kept for the next sync only if it comes soon enough to reuse them.
+        mAuthHttpRequest.closeIdleConnections();
         
         sLastCompletedSync = (new Date()).getTime();
 
@@ -278,9 +330,7 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
 			return;
 		}
 		String app = path.get(path.size() - 2);
-		String mappedApp = app;
 		String kind = path.get(path.size() - 1);
-		String urlBase = url;
 		ContentValues values = new ContentValues();
 		values.put(Meta_Table.SYNC_ACTIVE, true);
 		values.put(Meta_Table.PROGRESS_PERCENT, -1);
@@ -288,19 +338,9 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
         localProvider.insert(tableUri, null);
         localProvider.update(tableUri, values, null, null);
 
-        Uri mappingUri = Uri.withAppendedPath(Meta_Mapping.CONTENT_URI, app);
-        Cursor c = localProvider.query(mappingUri, null, null, null, null);
-        if (c.moveToFirst()) {
-        	int mappedAppCol = c.getColumnIndex(Meta_Mapping.MAPPED_APP);
-        	if (mappedAppCol != -1 && !c.isNull(mappedAppCol)) {
-        		mappedApp = c.getString(mappedAppCol);
-        	}
-        	int mappedUrlCol = c.getColumnIndex(Meta_Mapping.MAPPED_URL);
-        	if (mappedUrlCol != -1 && !c.isNull(mappedUrlCol)) {
-        		urlBase = c.getString(mappedUrlCol);
-        	}
-        }
-        c.close();
+        ServerMapping mapping = getServerMapping(localProvider, app, url);
+        String mappedApp = mapping.app;
+        String urlBase = mapping.url;
         
         if (urlBase.endsWith("/") && pathQuery.startsWith("/")) {
         	urlBase = urlBase.substring(0, urlBase.length() - 1);
@@ -324,10 +364,15 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
 		values.put(Meta_Table.STATUS, "Finding Changes");
         localProvider.update(tableUri, values, null, null);
         
-        UploadData upload = localProvider.startUploadTransactionForKind(app, kind, dataUri);
+        // Each chunk is posted on its own and cleared once the server has taken it, so no
+        // transaction is held while uploading. Edits made meanwhile are left for the next sync.
+        // Edits are sent in Smile to servers that have sent it, and in JSON otherwise.
+        JsonFactory uploadFactory = WireFormat.getUploadFactory(mapping.url, mObjectMapper);
+        UploadData upload = localProvider.startUploadForKind(app, kind, dataUri, uploadFactory);
         boolean error = upload.error;
-        Log.e(TAG, "For Kind " + kind + ":\n" + upload.data);
-        if (!error && upload.count > 0) {
+        long uploadBytes = 0;
+        long uploadWireBytes = 0;
+        while (!error && upload.count > 0) {
             // Actually upload the changes to the remote server
         	
         	values.clear();
@@ -336,27 +381,30 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
     		values.put(Meta_Table.STATUS, "Uploading");
             localProvider.update(tableUri, values, null, null);
         	
-    		Log.e(TAG, "Contacting hostname: " + destUrl);
-    		String uploadResult = "";
+    		Log.e(TAG, "Contacting hostname: " + destUrl + " to upload " + upload.count + " changes of kind " + kind);
     		
     		HttpPost http_post = new HttpPost(destUrl.toString());
-	        HttpParams params = http_post.getParams();
-	        HttpConnectionParams.setConnectionTimeout(params, 5000);
 	        http_post.addHeader(AUTH_TOKEN_HEADER, settings.getString(AUTH_TOKEN_PREF, DEFAULT_AUTH_TOKEN));
 	        http_post.addHeader(ACCOUNT_NAME_HEADER, accountName);
+	        HttpExchange exchange = null;
 	        HttpResponse response = null;
 	        InputStream inputStream = null;
 	        
+	        // Sent with a Content-Length, as App Engine does not accept chunked request bodies.
 	        try {
-				http_post.setEntity(new StringEntity(upload.data));
-			} catch (UnsupportedEncodingException e1) {
-				// TODO Auto-generated catch block
-				e1.printStackTrace();
-				error = true;
-			}
+	        	ByteArrayEntity entity = HttpCompression.encode(upload.data, WireFormat.getContentType(uploadFactory));
+	        	http_post.setEntity(entity);
+	        	uploadBytes += upload.data.length;
+	        	uploadWireBytes += entity.getContentLength();
+	        } catch (IOException e) {
+	        	Log.e(TAG, "Could not compress upload of " + kind, e);
+	        	error = true;
+	        	break;
+	        }
 	        
 	        try {
-				response = mAuthHttpRequest.getHttpClient().execute(http_post);
+	        	exchange = HttpExchange.execute(mAuthHttpRequest.getHttpClient(), http_post);
+				response = exchange.getResponse();
 				inputStream = response.getEntity().getContent();
 			} catch (IOException e) {
 				// TODO Auto-generated catch block
@@ -392,22 +440,34 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
 				lastResponseCode = response.getStatusLine().getStatusCode();
 				lastResponseMessage = response.getStatusLine().getReasonPhrase();
 			}
+			if (exchange != null) {
+				exchange.close();
+			}
 			
 			if (lastResponseCode != 200) {
 				error = true;
 			}
-            Log.e(TAG, "Got uploadResult: " + uploadResult + ", upload.count=" + upload.count);
+            Log.e(TAG, "Got uploadResult: " + sb + ", upload.count=" + upload.count);
+            if (error) {
+            	break;
+            }
             
         	values.clear();
         	values.put(Meta_Table.SYNC_ACTIVE, true);
     		values.put(Meta_Table.PROGRESS_PERCENT, -1);
     		values.put(Meta_Table.STATUS, "Clearing Changes");
             localProvider.update(tableUri, values, null, null);
+            
+            localProvider.finishUploadChunk(app, kind, upload);
+            upload = localProvider.nextUploadChunk(app, kind, dataUri, uploadFactory, upload);
+            error = upload.error;
         }
-        
-        localProvider.finishUploadTransactionForKind(app, kind, dataUri, upload, error);
 
         values.clear();
+        if (uploadBytes > 0) {
+        	values.put(Meta_Table.UPLOAD_BYTES, uploadBytes);
+        	values.put(Meta_Table.UPLOAD_WIRE_BYTES, uploadWireBytes);
+        }
         if (uploadOnly) {
         	values.put(Meta_Table.SYNC_ACTIVE, false);
 
@@ -445,87 +505,253 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
             localProvider.update(tableUri, values, null, null);
         	
 	        boolean downloadSuccess = false;
+	        // The server time of the first page, which becomes the last synced time once every page
+	        // has been written.
 			long downloadNow = 0;
+			long downloadBytes = 0;
+			long downloadWireBytes = 0;
 			
-			if (lastSynced > 0) {
-				String start_date = Store.sDateFormat.format(new Date((lastSynced - DATE_WINDOW_OVERLAP_SECONDS) * 1000));
+			// Only entities dated after the server's last watermark are downloaded. The server's
+			// clock decides, and nothing is downloaded twice.
+			long watermark = localProvider.getWatermark(tableUri);
+			long newWatermark = 0;
+			if (watermark > 0) {
+				destUrl = destUrl.buildUpon()
+						.appendQueryParameter(DATE_AFTER_PARAM, DateCodec.format(watermark)).build();
+			} else if (lastSynced > 0) {
+				String start_date = DateCodec.format(
+						(lastSynced - DATE_WINDOW_OVERLAP_SECONDS) * DateCodec.MICROS_PER_SECOND);
 				destUrl = destUrl.buildUpon().appendQueryParameter("date_start", start_date).build();
 			}
-			Log.e(TAG, "Contacting hostname: " + destUrl);
-
-	        HttpGet http_get = new HttpGet(destUrl.toString());
-	        HttpParams params = http_get.getParams();
-	        HttpConnectionParams.setConnectionTimeout(params, 5000);
-	        http_get.addHeader(AUTH_TOKEN_HEADER, settings.getString(AUTH_TOKEN_PREF, DEFAULT_AUTH_TOKEN));
-	        http_get.addHeader(ACCOUNT_NAME_HEADER, accountName);
-	        HttpResponse response = null;
-	        InputStream inputStream = null;
-	        try {
-				response = mAuthHttpRequest.getHttpClient().execute(http_get);
-				inputStream = response.getEntity().getContent();
-			} catch (IOException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
 			
-			int count = -1;
-			long connDate = -1;
-			if (response != null) {
-				Header countString = response.getFirstHeader(NUM_RESULTS_HEADER);
-				if (countString != null) {
-					count = Integer.valueOf(countString.getValue());
+			// The download is read a page at a time. The cursor of the next page is saved once a page 
+			// is written, so that an interrupted download resumes from there.
+			String continuation = localProvider.getContinuation(tableUri);
+			if (continuation != null) {
+				downloadNow = localProvider.getContinuationSynced(tableUri);
+				newWatermark = localProvider.getContinuationWatermark(tableUri);
+				Log.i(TAG, "Resuming download of " + kind + " from a saved cursor");
+			}
+			// The validator of the kind's state as of the last download. A new download is only 
+			// requested if the kind changed since. It is kept for downloads that were not resumed, 
+			// whose first page tells which state they start from.
+			boolean resumed = continuation != null;
+			String validator = resumed || lastSynced <= 0 ? null : localProvider.getValidator(tableUri);
+			String newValidator = null;
+			int page = 0;
+			boolean morePages = true;
+			while (morePages && !Thread.currentThread().isInterrupted()) {
+				++page;
+				Uri.Builder pageUrl = destUrl.buildUpon()
+						.appendQueryParameter(PAGE_SIZE_PARAM, String.valueOf(PAGE_SIZE));
+				if (continuation != null) {
+					pageUrl.appendQueryParameter(CURSOR_PARAM, continuation);
 				}
-				try {
-					Header dateString = response.getFirstHeader("Date");
-					if (dateString != null) {
-						connDate = DateUtils.parseDate(dateString.getValue()).getTime();
+				Log.e(TAG, "Contacting hostname: " + destUrl + ", page " + page);
+	
+		        HttpGet http_get = new HttpGet(pageUrl.build().toString());
+		        http_get.addHeader(AUTH_TOKEN_HEADER, settings.getString(AUTH_TOKEN_PREF, DEFAULT_AUTH_TOKEN));
+		        http_get.addHeader(ACCOUNT_NAME_HEADER, accountName);
+		        if (page == 1 && validator != null) {
+		        	http_get.addHeader(IF_NONE_MATCH_HEADER, validator);
+		        }
+		        HttpCompression.acceptCompressed(http_get);
+		        WireFormat.acceptSmile(http_get);
+		        WireFormat.acceptRows(http_get);
+		        HttpExchange exchange = null;
+		        HttpResponse response = null;
+		        InputStream inputStream = null;
+		        // Count the bytes received, and the bytes they decompress to.
+		        CountingInputStream wireStream = null;
+		        CountingInputStream decodedStream = null;
+		        try {
+					exchange = HttpExchange.execute(mAuthHttpRequest.getHttpClient(), http_get);
+					response = exchange.getResponse();
+					// A 304 has no body.
+					if (response.getEntity() != null) {
+						wireStream = new CountingInputStream(response.getEntity().getContent());
+						decodedStream = new CountingInputStream(HttpCompression.decode(response.getEntity(), wireStream));
+						inputStream = decodedStream;
 					}
-				} catch (DateParseException e) {
+				} catch (IOException e) {
 					// TODO Auto-generated catch block
 					e.printStackTrace();
 				}
-				lastResponseCode = response.getStatusLine().getStatusCode();
-				lastResponseMessage = response.getStatusLine().getReasonPhrase();
-			}
-			
-			if (inputStream != null && lastResponseCode == 200) {
-				downloadNow = connDate / 1000;
-						
-				values.clear();
-				values.put(Meta_Table.STATUS, "Parsing");
-		        localProvider.update(tableUri, values, null, null);
 				
-				JsonFactory f = new JsonFactory(mObjectMapper);
-				JsonParser jp = null;
-				try {
-					jp = f.createJsonParser(inputStream);
-				} catch (JsonParseException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
-				} catch (IOException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
+				int count = -1;
+				long connDate = -1;
+				String nextContinuation = null;
+				if (response != null) {
+					Header countString = response.getFirstHeader(NUM_RESULTS_HEADER);
+					if (countString != null) {
+						count = Integer.valueOf(countString.getValue());
+					}
+					try {
+						Header dateString = response.getFirstHeader("Date");
+						if (dateString != null) {
+							connDate = DateUtils.parseDate(dateString.getValue()).getTime();
+						}
+					} catch (DateParseException e) {
+						// TODO Auto-generated catch block
+						e.printStackTrace();
+					}
+					Header continuationString = response.getFirstHeader(CONTINUATION_HEADER);
+					if (continuationString != null && continuationString.getValue().length() > 0) {
+						nextContinuation = continuationString.getValue();
+					}
+					Header validatorString = response.getFirstHeader(ETAG_HEADER);
+					if (page == 1 && !resumed && validatorString != null) {
+						newValidator = validatorString.getValue();
+					}
+					Header watermarkString = response.getFirstHeader(WATERMARK_HEADER);
+					if (page == 1 && !resumed && watermarkString != null) {
+						long micros = DateCodec.parseMicros(watermarkString.getValue());
+						if (micros != DateCodec.INVALID) {
+							newWatermark = micros;
+						}
+					}
+					lastResponseCode = response.getStatusLine().getStatusCode();
+					lastResponseMessage = response.getStatusLine().getReasonPhrase();
 				}
-		        
-				if (jp != null) {					
-					if (count == -1 || count > 0) {
-						localProvider.updateAllFromJson(app, kind, dataUri, jp, count, tableUri);
+				
+				JsonFactory f = null;
+				boolean rows = false;
+				if (inputStream != null) {
+					// Servers that support Smile, or the rows layout, answer in them, as they were 
+					// asked for.
+					f = WireFormat.getFactory(mapping.url, response.getEntity(), mObjectMapper);
+					rows = WireFormat.isRows(response.getEntity());
+				}
+				List<String> columns = null;
+				File spool = null;
+				if (inputStream != null && lastResponseCode == 200 && (count == -1 || count > 0)) {
+					Header columnsString = response.getFirstHeader(COLUMNS_HEADER);
+					if (columnsString != null) {
+						columns = parseColumns(columnsString.getValue());
+					} else {
+						// The server did not list the columns, so find them in a first pass over a copy of 
+						// the download, letting the schema be created before any row is written.
+						values.clear();
+						values.put(Meta_Table.STATUS, "Reading columns");
+				        localProvider.update(tableUri, values, null, null);
+						try {
+							spool = spoolDownload(inputStream);
+							inputStream = new FileInputStream(spool);
+							columns = readColumns(f, spool, rows);
+						} catch (IOException e) {
+							Log.e(TAG, "Could not spool download of " + kind, e);
+							inputStream = null;
+						}
+					}
+				}
+				
+				boolean pageSuccess = false;
+				if (lastResponseCode == HttpStatus.SC_NOT_MODIFIED 
+						|| (inputStream != null && lastResponseCode == 200 && count == 0)) {
+					// Nothing changed, so neither a parser nor a transaction is needed.
+					Log.i(TAG, "No changes to " + kind + " (" + lastResponseCode + ")");
+					if (downloadNow == 0) {
+						downloadNow = connDate / 1000;
+					}
+					pageSuccess = true;
+				} else if (inputStream != null && lastResponseCode == 200) {
+					if (downloadNow == 0) {
+						downloadNow = connDate / 1000;
 					}
+							
+					values.clear();
+					values.put(Meta_Table.STATUS, "Parsing page " + page);
+			        localProvider.update(tableUri, values, null, null);
+					
+					JsonParser jp = null;
 					try {
-						jp.close();
+						jp = f.createJsonParser(inputStream);
+					} catch (JsonParseException e) {
+						// TODO Auto-generated catch block
+						e.printStackTrace();
 					} catch (IOException e) {
 						// TODO Auto-generated catch block
 						e.printStackTrace();
 					}
-					downloadSuccess = true;
+			        
+					if (jp != null) {
+						pageSuccess = true;
+						if (count == -1 || count > 0) {
+							try {
+								pageSuccess = localProvider.updateAllFromJson(app, kind, dataUri, jp, count, tableUri, 
+										columns, rows);
+							} catch (RuntimeException e) {
+								// Release the connection before the failure ends this sync.
+								exchange.close();
+								throw e;
+							}
+						}
+						try {
+							jp.close();
+						} catch (IOException e) {
+							// TODO Auto-generated catch block
+							e.printStackTrace();
+						}
+					}
+					
+				}
+				if (exchange != null) {
+					exchange.close();
+				}
+				if (spool != null) {
+					spool.delete();
+				}
+				if (decodedStream != null) {
+					downloadWireBytes += wireStream.getCount();
+					downloadBytes += decodedStream.getCount();
 				}
 				
+				if (!pageSuccess) {
+					if (continuation != null && lastResponseCode == 400) {
+						// The saved cursor is no longer accepted, so the next sync starts over.
+						Log.e(TAG, "Cursor of " + kind + " was rejected, restarting its download");
+						values.clear();
+						values.putNull(Meta_Table.CONTINUATION);
+						values.put(Meta_Table.CONTINUATION_SYNCED, 0);
+						values.put(Meta_Table.CONTINUATION_WATERMARK, 0);
+				        localProvider.update(tableUri, values, null, null);
+					}
+					break;
+				}
+				continuation = nextContinuation;
+				if (continuation == null) {
+					morePages = false;
+					downloadSuccess = true;
+				} else {
+					values.clear();
+					values.put(Meta_Table.CONTINUATION, continuation);
+					values.put(Meta_Table.CONTINUATION_SYNCED, downloadNow);
+					values.put(Meta_Table.CONTINUATION_WATERMARK, newWatermark);
+			        localProvider.update(tableUri, values, null, null);
+				}
 			}
 		
 			values.clear();
 			values.put(Meta_Table.SYNC_ACTIVE, false);
+			if (downloadWireBytes > 0) {
+				values.put(Meta_Table.DOWNLOAD_WIRE_BYTES, downloadWireBytes);
+				values.put(Meta_Table.DOWNLOAD_BYTES, downloadBytes);
+				Log.i(TAG, "Downloaded " + kind + ": " + downloadWireBytes + " bytes, " 
+						+ downloadBytes + " decompressed, in " + page + " pages");
+			}
 			if (downloadSuccess && downloadNow > 0) {
 				values.put(Meta_Table.LAST_SYNCED, downloadNow);
+				values.putNull(Meta_Table.CONTINUATION);
+				values.put(Meta_Table.CONTINUATION_SYNCED, 0);
+				values.put(Meta_Table.CONTINUATION_WATERMARK, 0);
+				if (newWatermark > 0) {
+					values.put(Meta_Table.WATERMARK, newWatermark);
+				}
+				if (newValidator != null) {
+					values.put(Meta_Table.VALIDATOR, newValidator);
+				} else {
+					values.putNull(Meta_Table.VALIDATOR);
+				}
 				values.put(Meta_Table.STATUS, "Idle");
 				values.put(Meta_Table.PROGRESS_PERCENT, 100);
 			} else {
@@ -546,5 +772,80 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
         // --------------- End: Download ----------------
         
 	}
+	
+	/**
+	 * The app name and server URL an app is synced with.
+	 */
+	static class ServerMapping {
+		String app;
+		String url;
+	}
+	
+	/**
+	 * Returns the server app is synced with, by its {@link Meta_Mapping}, or app itself on url.
+	 */
+	ServerMapping getServerMapping(StoreProvider localProvider, String app, String url) {
+		ServerMapping mapping = new ServerMapping();
+		mapping.app = app;
+		mapping.url = url;
+        Uri mappingUri = Uri.withAppendedPath(Meta_Mapping.CONTENT_URI, app);
+        Cursor c = localProvider.query(mappingUri, null, null, null, null);
+        if (c.moveToFirst()) {
+        	int mappedAppCol = c.getColumnIndex(Meta_Mapping.MAPPED_APP);
+        	if (mappedAppCol != -1 && !c.isNull(mappedAppCol)) {
+        		mapping.app = c.getString(mappedAppCol);
+        	}
+        	int mappedUrlCol = c.getColumnIndex(Meta_Mapping.MAPPED_URL);
+        	if (mappedUrlCol != -1 && !c.isNull(mappedUrlCol)) {
+        		mapping.url = c.getString(mappedUrlCol);
+        	}
+        }
+        c.close();
+        return mapping;
+	}
+	
+	/**
+	 * Parses the column list sent by the server: URL-encoded names, separated by commas.
+	 */
+	static List<String> parseColumns(String header) {
+		List<String> columns = new ArrayList<String>();
+		for (String column : header.split(",")) {
+			if (column.length() > 0) {
+				columns.add(Uri.decode(column));
+			}
+		}
+		return columns;
+	}
+	
+	/**
+	 * Copies a download to a file in the cache directory, so that it can be read twice.
+	 */
+	File spoolDownload(InputStream inputStream) throws IOException {
+		File spool = File.createTempFile("download", ".json", mContext.getCacheDir());
+		OutputStream out = new FileOutputStream(spool);
+		try {
+			byte[] buffer = new byte[8192];
+			int read;
+			while ((read = inputStream.read(buffer)) != -1) {
+				out.write(buffer, 0, read);
+			}
+		} catch (IOException e) {
+			spool.delete();
+			throw e;
+		} finally {
+			out.close();
+			inputStream.close();
+		}
+		return spool;
+	}
+	
+	static List<String> readColumns(JsonFactory f, File spool, boolean rows) throws IOException {
+		JsonParser jp = f.createJsonParser(spool);
+		try {
+			return RowDecoder.readFieldNames(jp, rows);
+		} finally {
+			jp.close();
+		}
+	}
 
 }
@@ -0,0 +1,95 @@
+/*******************************************************************************
+ * Copyright 2011 Kevin Gibbs and The Manta Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.mantasync;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import android.util.Log;
+
+/**
+ * Runs the syncs of several kinds at once, with at most a given number running against each
+ * server. Kinds are independent on the server, and a sync spends most of its time waiting on
+ * requests, so a sync of many kinds is mostly bound by latency.
+ *
+ * The kinds of one app still write to the same database, and their writes are serialized by the
+ * app's writer thread.
+ */
+final class SyncScheduler {
+	private static final String TAG = "Manta.SyncScheduler";
+
+	// Upper bound on the syncs run at once against a server, whatever the preference says.
+	static final int MAX_PARALLELISM = 8;
+
+	private final int mParallelism;
+	private final Map<String, ExecutorService> mServers = new HashMap<String, ExecutorService>();
+	private final List<Future<?>> mTasks = new ArrayList<Future<?>>();
+
+	SyncScheduler(int parallelism) {
+		mParallelism = Math.max(1, Math.min(parallelism, MAX_PARALLELISM));
+	}
+
+	/**
+	 * Runs task once fewer syncs than the parallelism are running against server. Tasks for the
+	 * same server start in the order they were submitted.
+	 */
+	void submit(String server, Runnable task) {
+		ExecutorService executor = mServers.get(server);
+		if (executor == null) {
+			executor = Executors.newFixedThreadPool(mParallelism);
+			mServers.put(server, executor);
+		}
+		mTasks.add(executor.submit(task));
+	}
+
+	/**
+	 * Waits for every task to finish. If a task failed, the first failure is thrown once all are
+	 * done. If interrupted, the running tasks are interrupted and those not started are dropped.
+	 */
+	void awaitAll() throws InterruptedException {
+		for (ExecutorService executor : mServers.values()) {
+			executor.shutdown();
+		}
+		RuntimeException failure = null;
+		try {
+			for (Future<?> task : mTasks) {
+				try {
+					task.get();
+				} catch (ExecutionException e) {
+					Log.e(TAG, "Sync of a kind failed", e.getCause());
+					if (failure == null) {
+						failure = e.getCause() instanceof RuntimeException
+								? (RuntimeException)e.getCause() : new RuntimeException(e.getCause());
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			for (ExecutorService executor : mServers.values()) {
+				executor.shutdownNow();
+			}
+			throw e;
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+}
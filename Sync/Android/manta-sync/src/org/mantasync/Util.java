@@ -16,8 +16,6 @@
 package org.mantasync;
 
 import java.io.IOException;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -41,7 +39,6 @@ import android.content.PeriodicSync;
 import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.net.Uri;
-import android.os.AsyncTask;
 import android.os.Bundle;
 import android.preference.PreferenceManager;
 import android.text.TextUtils;
@@ -169,6 +166,11 @@ public class Util {
         c.moveToFirst();
         ContentValues values = new ContentValues();
         values.put(Meta_Table.LAST_SYNCED, 0);
+        // A saved cursor belongs to the query of the old sync time, and the validator would let
+        // the server skip the full download.
+        values.putNull(Meta_Table.CONTINUATION);
+        values.putNull(Meta_Table.VALIDATOR);
+        values.put(Meta_Table.WATERMARK, 0);
         while (!c.isAfterLast()) {
         	String pathQuery = c.getString(c.getColumnIndex(Meta_Table.PATH_QUERY));
         	if (c.getLong(c.getColumnIndex(Meta_Table.LAST_SYNCED)) != 0) {
@@ -242,24 +244,4 @@ public class Util {
 		return result;
 	}
 
-	static private class DateWarmUpTask extends AsyncTask<String, Integer, Integer> {
-
-		@Override
-		protected Integer doInBackground(String... params) {
-
-			SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
-			try {
-				format.parse(params[0]);
-			} catch (ParseException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
-			return 0;
-		}
-	}
-
-	static void WarmUpDateParsing() {
-		new DateWarmUpTask().execute("2011-06-20 13:45:46.062081");
-	}
-
 }
@@ -0,0 +1,113 @@
+/*******************************************************************************
+ * Copyright 2011 Kevin Gibbs and The Manta Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.mantasync;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpRequest;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.ObjectCodec;
+import org.codehaus.jackson.smile.SmileFactory;
+
+/**
+ * Chooses between JSON and Smile, Jackson's binary JSON, for sync requests and responses. Smile
+ * sends each field name once per response and refers back to it afterwards, and numbers in binary,
+ * so it is both smaller than JSON and quicker to parse.
+ *
+ * Downloads in either format may also come in the rows layout read by {@link RowDecoder}, which
+ * lists the columns once and sends each entity as an array of values. It is asked for with the
+ * {@link #LAYOUT_HEADER}, and marked by a layout parameter on the content type of the response.
+ *
+ * Downloads always ask for Smile, and are read in whichever format the server answers in. Uploads
+ * are only sent in Smile to servers that have answered a download in it, so that servers which do
+ * not know Smile are sent JSON as before.
+ */
+final class WireFormat {
+	static final String JSON_CONTENT_TYPE = "application/json; charset=UTF-8";
+	static final String SMILE_CONTENT_TYPE = "application/x-jackson-smile";
+
+	static final String LAYOUT_HEADER = "X-Layout";
+	static final String ROWS_LAYOUT = "rows";
+	private static final String ROWS_LAYOUT_PARAMETER = "layout=" + ROWS_LAYOUT;
+
+	// The servers known to accept Smile uploads.
+	private static final Map<String, Boolean> sSmileServers = new ConcurrentHashMap<String, Boolean>();
+
+	private WireFormat() {}
+
+	/**
+	 * Asks for the response to request to be in Smile, or else in JSON.
+	 */
+	static void acceptSmile(HttpRequest request) {
+		request.setHeader("Accept", SMILE_CONTENT_TYPE + ", application/json;q=0.9");
+	}
+
+	/**
+	 * Asks for the entities of the response to request in the rows layout.
+	 */
+	static void acceptRows(HttpRequest request) {
+		request.setHeader(LAYOUT_HEADER, ROWS_LAYOUT);
+	}
+
+	/**
+	 * Returns whether the entities of entity are in the rows layout. Servers that do not know the
+	 * layout answer with objects, and no layout parameter.
+	 */
+	static boolean isRows(HttpEntity entity) {
+		Header contentType = entity.getContentType();
+		return contentType != null && contentType.getValue().replace(" ", "").contains(";" + ROWS_LAYOUT_PARAMETER);
+	}
+
+	/**
+	 * Returns whether entity is in Smile.
+	 */
+	static boolean isSmile(HttpEntity entity) {
+		Header contentType = entity.getContentType();
+		return contentType != null && contentType.getValue().startsWith(SMILE_CONTENT_TYPE);
+	}
+
+	/**
+	 * Returns a factory for parsers of entity, whose content type is JSON unless it is Smile.
+	 * A server that sends Smile is remembered as accepting it too.
+	 */
+	static JsonFactory getFactory(String server, HttpEntity entity, ObjectCodec codec) {
+		if (isSmile(entity)) {
+			sSmileServers.put(server, true);
+			return new SmileFactory(codec);
+		}
+		return new JsonFactory(codec);
+	}
+
+	/**
+	 * Returns a factory for the uploads to server.
+	 */
+	static JsonFactory getUploadFactory(String server, ObjectCodec codec) {
+		if (sSmileServers.containsKey(server)) {
+			return new SmileFactory(codec);
+		}
+		return new JsonFactory(codec);
+	}
+
+	/**
+	 * Returns the content type of the data written by factory.
+	 */
+	static String getContentType(JsonFactory factory) {
+		return factory instanceof SmileFactory ? SMILE_CONTENT_TYPE : JSON_CONTENT_TYPE;
+	}
+}